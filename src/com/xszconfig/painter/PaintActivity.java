@@ -7,6 +7,7 @@ import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.graphics.Bitmap;
 import android.graphics.Color;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Parcelable;
@@ -33,6 +34,7 @@ import com.xszconfig.utils.AlertDialogUtil;
 import com.xszconfig.utils.DateUtil;
 import com.xszconfig.utils.ToastUtil;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -41,6 +43,7 @@ import java.io.IOException;
 public class PaintActivity extends Activity implements OnClickListener {
   public static final String PREFERENCE_FILE_NAME_STRING = "PaintActivity";
   public static final String KEY_LAST_SAVED_PAINTING_PATH = "KEY_LAST_SAVED_PAINTING_PATH";
+  public static final String KEY_OLD_RAW_CACHES_DELETED = "KEY_OLD_RAW_CACHES_DELETED";
 //  public static final String KEY_LAST_SAVED_BRUSH_SIZE = "KEY_LAST_SAVED_BRUSH_SIZE";
 //  public static final String KEY_LAST_SAVED_BRUSH_COLOR = "KEY_LAST_SAVED_BRUSH_COLOR";
 
@@ -49,6 +52,13 @@ public class PaintActivity extends Activity implements OnClickListener {
   private ToastUtil mToastUtil;
   private SharedPreferences mSharedPreferences;
   private  Editor mEditor;
+  private final PaintingExporter mExporter = new PaintingExporter();
+
+  /**
+   * Whether the painting is left without saving on purpose, so its autosave goes too.
+   * A saved painting drops its autosave only once the export is done.
+   */
+  private boolean mDiscardAutosaveOnFinish = false;
 
   private LinearLayout bottomMenuLayout;
   private LinearLayout sizeAndAlphaPickerLayout;
@@ -79,11 +89,19 @@ public class PaintActivity extends Activity implements OnClickListener {
     mSharedPreferences = mContext.getSharedPreferences(PREFERENCE_FILE_NAME_STRING, Context.MODE_PRIVATE);
 //        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
     mEditor = mSharedPreferences.edit();
+    if (!mSharedPreferences.getBoolean(KEY_OLD_RAW_CACHES_DELETED, false)) {
+      // Raw caches are kept in the cache directory now, the ones left by older versions go once.
+      mExporter.deleteOldRawCaches(new File(Environment.getExternalStorageDirectory().getAbsolutePath()
+          + Constants.SDCARD_ROOT_PATH));
+      mEditor.putBoolean(KEY_OLD_RAW_CACHES_DELETED, true).apply();
+    }
 
     mSketchpad = (Sketchpad) findViewById(R.id.sketchpad);
     //TODO if last painting was saved when exit, it'll restored automatically
     mSketchpad.setSavedPaintingPath(mSharedPreferences.getString(KEY_LAST_SAVED_PAINTING_PATH, ""));
     mSketchpad.setOnClickListener(this);
+    // Undo and redo cost the area of the action, falling back to replay past the patches kept.
+    mSketchpad.setHistoryMode(Sketchpad.HistoryMode.PIXEL_PATCH);
     mSketchpad.setCropModeListener(new Sketchpad.CropModeListener() {
       @Override
       public void onModeChanged(boolean newMode) {
@@ -223,6 +241,21 @@ public class PaintActivity extends Activity implements OnClickListener {
     super.onResume();
   }
 
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    mSketchpad.trimMemory(level);
+  }
+
+  @Override
+  protected void onDestroy() {
+    // The autosave is only for a painting lost by a crash or being killed in background.
+    if (isFinishing() && mDiscardAutosaveOnFinish) {
+      mSketchpad.discardAutosave();
+    }
+    super.onDestroy();
+  }
+
   @Override
   public boolean onTouchEvent(MotionEvent event) {
     return mSketchpad.onTouchEvent(event);
@@ -257,15 +290,13 @@ public class PaintActivity extends Activity implements OnClickListener {
       }
 
       case R.id.redo:
-        if(mSketchpad.haveActionsToRedo()) {
-          mSketchpad.redo();
+        if(mSketchpad.redo()) {
           mToastUtil.shortToast(getString(R.string.redo));
         }
         break;
 
       case R.id.undo:
-        if(mSketchpad.haveActionsToShow()) {
-          mSketchpad.undo();
+        if(mSketchpad.undo()) {
           mToastUtil.shortToast(getString(R.string.undo));
         }
         break;
@@ -299,12 +330,26 @@ public class PaintActivity extends Activity implements OnClickListener {
     String directory = Environment.getExternalStorageDirectory().getAbsolutePath() + Constants.SDCARD_ROOT_PATH;
     String filename = DateUtil.format("yyyyMMdd_HHmmss", System.currentTimeMillis()) + ".png";
     File file = new File(directory, filename);
-    boolean isSaved = savePicAsPNG(mSketchpad.getScreenshot(), file);
-    if (isSaved) {
-      mToastUtil.longToast(getString(R.string.image_saved) + file.getPath());
-      mEditor.putString(KEY_LAST_SAVED_PAINTING_PATH, file.getPath()).commit();
-    } else
-      mToastUtil.longToast(getString(R.string.fail_to_save_image));
+    mExporter.export(mSketchpad, file, new PaintingExporter.OnExportListener() {
+      @Override
+      public void onExportProgress(int progress) {
+        // The toast when finished is enough.
+      }
+
+      @Override
+      public void onExportFinished(File file, boolean isSaved) {
+        if (isSaved) {
+          mToastUtil.longToast(getString(R.string.image_saved) + file.getPath());
+          mEditor.putString(KEY_LAST_SAVED_PAINTING_PATH, file.getPath()).apply();
+          // Left after saving, the painting is safe in the file now.
+          // Otherwise the autosave stays and brings it back next time.
+          if (isFinishing()) {
+            mSketchpad.discardAutosave();
+          }
+        } else
+          mToastUtil.longToast(getString(R.string.fail_to_save_image));
+      }
+    });
   }
 
   @Override
@@ -319,6 +364,7 @@ public class PaintActivity extends Activity implements OnClickListener {
     }
 
     if (!mSketchpad.haveActionsToShow()){
+      mDiscardAutosaveOnFinish = true;
       finish();
       return;
     }
@@ -336,6 +382,7 @@ public class PaintActivity extends Activity implements OnClickListener {
         getString(R.string.do_not_save), new DialogInterface.OnClickListener() {
           @Override
           public void onClick(DialogInterface dialog, int which) {
+            mDiscardAutosaveOnFinish = true;
             finish();
 
           }
@@ -351,6 +398,17 @@ public class PaintActivity extends Activity implements OnClickListener {
 //  }
 
   public static boolean savePicAsPNG(Bitmap b, File file) {
+    return savePicAsPNG(b, file, null);
+  }
+
+  /**
+   * Save the bitmap as PNG, encoded on all cores by {@link ParallelPngEncoder} on KitKat and
+   * later, by {@link Bitmap#compress} before that.
+   *
+   * @param listener progress of the parallel encoder, may be null
+   */
+  public static boolean savePicAsPNG(Bitmap b, File file,
+                                     ParallelPngEncoder.ProgressListener listener) {
     final int COMPRESS_QUALITY = 100;
     FileOutputStream fos = null;
     boolean isSuccessful = false;
@@ -361,7 +419,14 @@ public class PaintActivity extends Activity implements OnClickListener {
       String filePath = file.getPath();
       fos = new FileOutputStream(filePath);
       if (null != fos) {
-        isSuccessful = b.compress(Bitmap.CompressFormat.PNG, COMPRESS_QUALITY, fos);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+          BufferedOutputStream bos = new BufferedOutputStream(fos);
+          ParallelPngEncoder.encode(b, bos, listener);
+          bos.flush();
+          isSuccessful = true;
+        } else {
+          isSuccessful = b.compress(Bitmap.CompressFormat.PNG, COMPRESS_QUALITY, fos);
+        }
         fos.flush();
         fos.close();
         return isSuccessful;
@@ -0,0 +1,148 @@
+package com.xszconfig.painter;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.xszconfig.painter.view.Action;
+import com.xszconfig.painter.view.RawBitmapCache;
+import com.xszconfig.painter.view.SketchDocument;
+import com.xszconfig.painter.view.Sketchpad;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Export paintings of a {@link Sketchpad} as PNG files in background, each with a
+ * {@link SketchDocument} next to it to open it again with its history.
+ * <p>
+ * A copy of the screenshot is taken on the render thread and encoded on a
+ * background thread, so neither the UI nor drawing waits for the encoder. The document is
+ * written on the same thread after the PNG. Exports run one after another and go on after
+ * the activity is finished.
+ *
+ * @author xszconfig@gmail.com
+ */
+public class PaintingExporter {
+
+  public interface OnExportListener {
+    /**
+     * Called on the UI thread as the export goes on.
+     *
+     * @param progress from 0 to 100
+     */
+    public void onExportProgress(int progress);
+
+    /**
+     * Called on the UI thread when the export is done.
+     */
+    public void onExportFinished(File file, boolean isSaved);
+  }
+
+  private static final ExecutorService EXPORT_EXECUTOR = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          return new Thread(new Runnable() {
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              r.run();
+            }
+          }, "PaintingExporter");
+        }
+      });
+
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+  /**
+   * Export the painting as it is now to the given file.
+   *
+   * @param listener may be null
+   */
+  public void export(Sketchpad sketchpad, final File file, final OnExportListener listener) {
+    final File cacheDirectory = sketchpad.getContext().getCacheDir();
+    sketchpad.takeSnapshot(new Sketchpad.SnapshotCallback() {
+      @Override
+      public void onSnapshotTaken(final Bitmap snapshot, final Bitmap baseImage,
+                                  final List<Action> actions) {
+        if (snapshot == null) {
+          postFinished(listener, file, false);
+          return;
+        }
+        EXPORT_EXECUTOR.execute(new Runnable() {
+          @Override
+          public void run() {
+            postProgress(listener, 0);
+            boolean isSaved = PaintActivity.savePicAsPNG(snapshot, file,
+                new ParallelPngEncoder.ProgressListener() {
+                  @Override
+                  public void onProgress(int stripesDone, int stripeCount) {
+                    postProgress(listener, stripesDone * 100 / stripeCount);
+                  }
+                });
+            if (isSaved) {
+              try {
+                SketchDocument.write(SketchDocument.documentFileFor(file), baseImage, actions);
+              } catch (IOException e) {
+                e.printStackTrace();
+              }
+              // So that the painting is loaded again without decoding the PNG or
+              // replaying the document.
+              try {
+                RawBitmapCache.write(cacheDirectory, file, snapshot);
+              } catch (IOException e) {
+                e.printStackTrace();
+              }
+            }
+            snapshot.recycle();
+            postFinished(listener, file, isSaved);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Delete the raw caches older versions kept next to the images in the given directory,
+   * in background after the exports queued so far.
+   */
+  public void deleteOldRawCaches(final File imageDirectory) {
+    EXPORT_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        RawBitmapCache.deleteCachesNextToImages(imageDirectory);
+      }
+    });
+  }
+
+  private void postProgress(final OnExportListener listener, final int progress) {
+    if (listener == null) {
+      return;
+    }
+    mMainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        listener.onExportProgress(progress);
+      }
+    });
+  }
+
+  private void postFinished(final OnExportListener listener, final File file,
+                            final boolean isSaved) {
+    if (listener == null) {
+      return;
+    }
+    mMainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        listener.onExportFinished(file, isSaved);
+      }
+    });
+  }
+}
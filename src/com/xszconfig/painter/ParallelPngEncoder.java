@@ -0,0 +1,374 @@
+package com.xszconfig.painter;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder that filters and deflates horizontal stripes of the image on all cores.
+ * <p>
+ * Like pigz, every stripe is deflated on its own with the last 32K of the data before it
+ * as the dictionary, so it compresses almost as well as one stream. All stripes but the
+ * last end with a sync flush, so their output can be concatenated into one valid zlib
+ * stream, and the Adler-32 of the whole stream is combined from those of the stripes.
+ * Stripes are written out in order as soon as they are done.
+ * <p>
+ * Needs sync flush of {@link Deflater}, which came with KitKat. Callers check
+ * {@code Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT} and use
+ * {@link Bitmap#compress} below that.
+ *
+ * @author xszconfig@gmail.com
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class ParallelPngEncoder {
+
+  public interface ProgressListener {
+    /**
+     * Called on the encoding thread every time a stripe is written.
+     */
+    public void onProgress(int stripesDone, int stripeCount);
+  }
+
+  private static final byte[] PNG_SIGNATURE = {
+      (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+  };
+
+  /**
+   * zlib header of deflate with 32K window and default compression.
+   */
+  private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9c};
+
+  private static final int BYTES_PER_PIXEL = 4;
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+
+  /**
+   * Stripes are made this large at least, smaller ones lose too much compression.
+   */
+  private static final int MIN_STRIPE_BYTES = 128 * 1024;
+  /**
+   * More stripes than cores so that the cores are kept busy till the end.
+   */
+  private static final int STRIPES_PER_CORE = 4;
+
+  private static final int FILTER_NONE = 0;
+  private static final int FILTER_SUB = 1;
+  private static final int FILTER_UP = 2;
+  private static final int FILTER_AVERAGE = 3;
+  private static final int FILTER_PAETH = 4;
+
+  private static final int CORE_COUNT = Runtime.getRuntime().availableProcessors();
+  private static final ExecutorService STRIPE_EXECUTOR = Executors.newFixedThreadPool(CORE_COUNT);
+
+  private ParallelPngEncoder() {
+  }
+
+  /**
+   * Encode the bitmap as a 8-bit RGBA PNG. The bitmap must not change while encoding.
+   *
+   * @param listener may be null
+   */
+  public static void encode(Bitmap bitmap, OutputStream out, ProgressListener listener)
+      throws IOException {
+    final int height = bitmap.getHeight();
+    final int rowBytes = 1 + bitmap.getWidth() * BYTES_PER_PIXEL;
+
+    int rowsPerStripe = (height + CORE_COUNT * STRIPES_PER_CORE - 1)
+        / (CORE_COUNT * STRIPES_PER_CORE);
+    rowsPerStripe = Math.max(rowsPerStripe, (MIN_STRIPE_BYTES + rowBytes - 1) / rowBytes);
+    encode(bitmap, out, listener, rowsPerStripe);
+  }
+
+  /**
+   * Encode with the given stripe height instead of one picked for the cores, e.g. to test
+   * stripes smaller than the dictionary.
+   */
+  static void encode(Bitmap bitmap, OutputStream out, ProgressListener listener,
+                     int rowsPerStripe) throws IOException {
+    final int width = bitmap.getWidth();
+    final int height = bitmap.getHeight();
+    rowsPerStripe = Math.max(Math.min(rowsPerStripe, height), 1);
+    int stripeCount = Math.max((height + rowsPerStripe - 1) / rowsPerStripe, 1);
+
+    List<Future<Stripe>> futures = new ArrayList<Future<Stripe>>(stripeCount);
+    for (int i = 0; i < stripeCount; i++) {
+      int startRow = i * rowsPerStripe;
+      int endRow = Math.min(startRow + rowsPerStripe, height);
+      boolean isLast = i == stripeCount - 1;
+      futures.add(STRIPE_EXECUTOR.submit(new StripeTask(bitmap, startRow, endRow, isLast)));
+    }
+
+    try {
+      out.write(PNG_SIGNATURE);
+      byte[] header = new byte[13];
+      putInt(header, 0, width);
+      putInt(header, 4, height);
+      header[8] = 8; // bit depth
+      header[9] = 6; // color type, RGBA
+      header[10] = 0; // compression
+      header[11] = 0; // filter
+      header[12] = 0; // interlace
+      writeChunk(out, "IHDR", header, 0, header.length);
+      writeChunk(out, "IDAT", ZLIB_HEADER, 0, ZLIB_HEADER.length);
+
+      long adler = 1;
+      for (int i = 0; i < stripeCount; i++) {
+        Stripe stripe = getStripe(futures.get(i));
+        writeChunk(out, "IDAT", stripe.data, 0, stripe.length);
+        adler = combineAdler32(adler, stripe.adler, stripe.inputLength);
+        if (listener != null) {
+          listener.onProgress(i + 1, stripeCount);
+        }
+      }
+
+      byte[] trailer = new byte[4];
+      putInt(trailer, 0, (int) adler);
+      writeChunk(out, "IDAT", trailer, 0, trailer.length);
+      writeChunk(out, "IEND", trailer, 0, 0);
+    } finally {
+      for (Future<Stripe> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  private static Stripe getStripe(Future<Stripe> future) throws IOException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException e) {
+      throw new IOException("Fail to encode stripe", e.getCause());
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static class Stripe {
+    byte[] data;
+    int length;
+    int adler;
+    long inputLength;
+  }
+
+  private static class StripeTask implements Callable<Stripe> {
+    private final Bitmap mBitmap;
+    private final int mStartRow;
+    private final int mEndRow;
+    private final boolean mIsLast;
+
+    StripeTask(Bitmap bitmap, int startRow, int endRow, boolean isLast) {
+      mBitmap = bitmap;
+      mStartRow = startRow;
+      mEndRow = endRow;
+      mIsLast = isLast;
+    }
+
+    @Override
+    public Stripe call() {
+      int width = mBitmap.getWidth();
+      int rowBytes = 1 + width * BYTES_PER_PIXEL;
+
+      // Filter the rows of the dictionary again instead of waiting for the stripe before,
+      // the filters give the same bytes either way.
+      int dictionaryRows = mStartRow > 0 ? (DICTIONARY_SIZE + rowBytes - 1) / rowBytes : 0;
+      int firstRow = Math.max(mStartRow - dictionaryRows, 0);
+      dictionaryRows = mStartRow - firstRow;
+      int rowCount = mEndRow - firstRow;
+
+      byte[] filtered = new byte[rowCount * rowBytes];
+      int[] argb = new int[width];
+      byte[] previous = new byte[width * BYTES_PER_PIXEL];
+      byte[] current = new byte[width * BYTES_PER_PIXEL];
+      if (firstRow > 0) {
+        mBitmap.getPixels(argb, 0, width, 0, firstRow - 1, width, 1);
+        toRgba(argb, previous);
+      }
+      for (int row = 0; row < rowCount; row++) {
+        mBitmap.getPixels(argb, 0, width, 0, firstRow + row, width, 1);
+        toRgba(argb, current);
+        filterRow(current, previous, filtered, row * rowBytes);
+        byte[] tmp = previous;
+        previous = current;
+        current = tmp;
+      }
+
+      int dictionaryLength = Math.min(dictionaryRows * rowBytes, DICTIONARY_SIZE);
+      int inputStart = dictionaryRows * rowBytes;
+      int inputLength = filtered.length - inputStart;
+
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(inputLength / 4 + 64);
+      try {
+        if (dictionaryLength > 0) {
+          deflater.setDictionary(filtered, inputStart - dictionaryLength, dictionaryLength);
+        }
+        deflater.setInput(filtered, inputStart, inputLength);
+        byte[] buffer = new byte[64 * 1024];
+        if (mIsLast) {
+          deflater.finish();
+          while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            out.write(buffer, 0, count);
+          }
+        } else {
+          int count;
+          do {
+            count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            out.write(buffer, 0, count);
+          } while (count == buffer.length);
+        }
+      } finally {
+        deflater.end();
+      }
+
+      Adler32 adler32 = new Adler32();
+      adler32.update(filtered, inputStart, inputLength);
+
+      Stripe stripe = new Stripe();
+      stripe.data = out.toByteArray();
+      stripe.length = stripe.data.length;
+      stripe.adler = (int) adler32.getValue();
+      stripe.inputLength = inputLength;
+      return stripe;
+    }
+  }
+
+  /**
+   * Convert ARGB colors to RGBA bytes.
+   */
+  private static void toRgba(int[] argb, byte[] rgba) {
+    for (int i = 0, j = 0; i < argb.length; i++, j += BYTES_PER_PIXEL) {
+      int color = argb[i];
+      rgba[j] = (byte) (color >> 16);
+      rgba[j + 1] = (byte) (color >> 8);
+      rgba[j + 2] = (byte) color;
+      rgba[j + 3] = (byte) (color >>> 24);
+    }
+  }
+
+  /**
+   * Filter one row with the filter of the smallest sum of absolute differences,
+   * the usual heuristic of libpng.
+   */
+  private static void filterRow(byte[] row, byte[] previous, byte[] out, int offset) {
+    int bestFilter = FILTER_NONE;
+    long bestSum = Long.MAX_VALUE;
+    for (int filter = FILTER_NONE; filter <= FILTER_PAETH; filter++) {
+      long sum = 0;
+      for (int i = 0; i < row.length && sum < bestSum; i++) {
+        sum += Math.abs((byte) filterByte(filter, row, previous, i));
+      }
+      if (sum < bestSum) {
+        bestSum = sum;
+        bestFilter = filter;
+      }
+    }
+
+    out[offset] = (byte) bestFilter;
+    for (int i = 0; i < row.length; i++) {
+      out[offset + 1 + i] = (byte) filterByte(bestFilter, row, previous, i);
+    }
+  }
+
+  private static int filterByte(int filter, byte[] row, byte[] previous, int i) {
+    int x = row[i] & 0xff;
+    int a = i >= BYTES_PER_PIXEL ? row[i - BYTES_PER_PIXEL] & 0xff : 0;
+    int b = previous[i] & 0xff;
+    switch (filter) {
+      case FILTER_SUB:
+        return x - a;
+      case FILTER_UP:
+        return x - b;
+      case FILTER_AVERAGE:
+        return x - ((a + b) >> 1);
+      case FILTER_PAETH:
+        int c = i >= BYTES_PER_PIXEL ? previous[i - BYTES_PER_PIXEL] & 0xff : 0;
+        return x - paeth(a, b, c);
+      default:
+        return x;
+    }
+  }
+
+  private static int paeth(int a, int b, int c) {
+    int p = a + b - c;
+    int pa = Math.abs(p - a);
+    int pb = Math.abs(p - b);
+    int pc = Math.abs(p - c);
+    if (pa <= pb && pa <= pc) {
+      return a;
+    }
+    return pb <= pc ? b : c;
+  }
+
+  /**
+   * Adler-32 of two pieces of data put together, as adler32_combine() of zlib.
+   *
+   * @param length2 length of the second piece
+   */
+  static long combineAdler32(long adler1, long adler2, long length2) {
+    final long BASE = 65521;
+    long remainder = length2 % BASE;
+    long sum1 = adler1 & 0xffff;
+    long sum2 = (remainder * sum1) % BASE;
+    sum1 += (adler2 & 0xffff) + BASE - 1;
+    sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + BASE - remainder;
+    if (sum1 >= BASE) {
+      sum1 -= BASE;
+    }
+    if (sum1 >= BASE) {
+      sum1 -= BASE;
+    }
+    if (sum2 >= (BASE << 1)) {
+      sum2 -= (BASE << 1);
+    }
+    if (sum2 >= BASE) {
+      sum2 -= BASE;
+    }
+    return sum1 | (sum2 << 16);
+  }
+
+  private static void writeChunk(OutputStream out, String type, byte[] data, int offset,
+                                 int length) throws IOException {
+    byte[] buffer = new byte[8];
+    putInt(buffer, 0, length);
+    for (int i = 0; i < 4; i++) {
+      buffer[4 + i] = (byte) type.charAt(i);
+    }
+    out.write(buffer, 0, 8);
+    out.write(data, offset, length);
+
+    CRC32 crc = new CRC32();
+    crc.update(buffer, 4, 4);
+    crc.update(data, offset, length);
+    putInt(buffer, 0, (int) crc.getValue());
+    out.write(buffer, 0, 4);
+  }
+
+  private static void putInt(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) (value >>> 24);
+    buffer[offset + 1] = (byte) (value >>> 16);
+    buffer[offset + 2] = (byte) (value >>> 8);
+    buffer[offset + 3] = (byte) value;
+  }
+}
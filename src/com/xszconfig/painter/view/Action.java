@@ -4,6 +4,7 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.RectF;
 
 /**
  * This is the class stands for every stroke when user is drawing.
@@ -24,30 +25,69 @@ public class Action {
 
   protected Brush mBrush;
   protected int mColor;
-  protected Path mPath;
+
+  /**
+   * The points this action covers, this is what gets stored.
+   */
+  protected final Stroke mStroke;
+
+  /**
+   * Built from mStroke lazily, only when rendering.
+   */
+  private Path mPath;
+  private int mPathPointCount = 0;
+
+  /**
+   * Number of points drawn by {@link #drawPendingSegments(Canvas, RectF)} so far.
+   */
+  private int mDrawnPointCount = 0;
+  private final Path mPendingPath = new Path();
+
+  /**
+   * Built from color and brush on first draw, so that drawing allocates nothing afterwards.
+   */
+  private Paint mStrokePaint;
+  private Paint mOpaqueStrokePaint;
 
   Action() {
     this.mBrush = new Brush();
     this.mColor = DEFAULT_COLOR;
-    this.mPath = new Path();
+    this.mStroke = new Stroke(false, false);
   }
 
-  Action(int color, Brush brush, Path path) {
+  Action(int color, Brush brush, Stroke stroke) {
     this.mColor = color;
     this.mBrush = brush;
-    this.mPath = path;
+    this.mStroke = stroke;
   }
 
   Action(Brush brush, int color, float x, float y) {
+    this(brush, color, x, y, Stroke.DEFAULT_PRESSURE, 0);
+  }
+
+  Action(Brush brush, int color, float x, float y, float pressure, long timeMillis) {
     this.mColor = color;
     this.mBrush = brush;
-    mPath = new Path();
-    mPath.moveTo(x, y);
-    mPath.lineTo(x, y);
+    this.mStroke = new Stroke(true, true);
+    mStroke.add(x, y, pressure, timeMillis);
+  }
 
+  public Stroke getStroke() {
+    return mStroke;
   }
 
+  /**
+   * Get the path of all points, it is built from the stroke on demand.
+   */
   public Path getPath() {
+    if (mPath == null) {
+      mPath = new Path();
+    }
+    int pointCount = mStroke.getPointCount();
+    if (mPathPointCount < pointCount) {
+      mStroke.appendToPath(mPath, mPathPointCount);
+      mPathPointCount = pointCount;
+    }
     return mPath;
   }
 
@@ -60,6 +100,81 @@ public class Action {
   }
 
   public void draw(Canvas canvas) {
+    canvas.drawPath(getPath(), getStrokePaint());
+  }
+
+  /**
+   * Draw only the segments added since last call, so that drawing an in-progress
+   * stroke costs the same no matter how long it is.
+   * <p>
+   * Every batch starts from the last point drawn, the round caps of two adjacent
+   * batches overlap there and make a round join. So a translucent stroke must be drawn
+   * with {@link #getOpaqueStrokePaint()} into a layer, see {@link #isTranslucent()}.
+   *
+   * @param canvas the canvas to draw on
+   * @param outDirty the area drawn, including the stroke width and anti-aliasing
+   * @return false if there was nothing to draw
+   */
+  public boolean drawPendingSegments(Canvas canvas, RectF outDirty) {
+    return drawPendingSegments(canvas, getStrokePaint(), outDirty);
+  }
+
+  /**
+   * @param paint the paint to draw with instead of the stroke paint
+   * @see #drawPendingSegments(Canvas, RectF)
+   */
+  boolean drawPendingSegments(Canvas canvas, Paint paint, RectF outDirty) {
+    int pointCount = mStroke.getPointCount();
+    if (mDrawnPointCount >= pointCount) {
+      return false;
+    }
+
+    // The very first point is a dot to be drawn as well.
+    int from = mDrawnPointCount == 0 ? 0 : mDrawnPointCount - 1;
+    mPendingPath.rewind();
+    if (from == 0) {
+      mStroke.appendToPath(mPendingPath, 0);
+    } else {
+      mPendingPath.moveTo(mStroke.getX(from), mStroke.getY(from));
+      mStroke.appendToPath(mPendingPath, from + 1);
+    }
+    canvas.drawPath(mPendingPath, paint);
+
+    mStroke.getBounds(from, pointCount, outDirty);
+    float outset = getStrokeWidth() / 2 + 1;
+    outDirty.inset(-outset, -outset);
+    mDrawnPointCount = pointCount;
+    return true;
+  }
+
+  Paint getStrokePaint() {
+    if (mStrokePaint == null) {
+      mStrokePaint = createPaint();
+    }
+    return mStrokePaint;
+  }
+
+  /**
+   * Whether the color is translucent, so that overlapping batches of the stroke would
+   * blend twice where they join.
+   */
+  boolean isTranslucent() {
+    return Color.alpha(mColor) < 0xFF;
+  }
+
+  /**
+   * The stroke paint at full opacity, to draw a translucent stroke piece by piece into a
+   * layer that is blended with the alpha of the color at once.
+   */
+  Paint getOpaqueStrokePaint() {
+    if (mOpaqueStrokePaint == null) {
+      mOpaqueStrokePaint = createPaint();
+      mOpaqueStrokePaint.setAlpha(0xFF);
+    }
+    return mOpaqueStrokePaint;
+  }
+
+  private Paint createPaint() {
     Paint paint = new Paint();
     paint.setAntiAlias(true);//反锯齿效果
     paint.setDither(true);//抖动，不懂O.o
@@ -68,10 +183,30 @@ public class Action {
     paint.setStyle(Paint.Style.STROKE);//画笔效果，STROKE只描边、FILL填充路径范围空间、FILL_AND_STROKE填充并描边
     paint.setStrokeJoin(Paint.Join.ROUND);//笔画拐弯方式， ROUND圆狐拐角、BEVEL直线外沿拐角、MITER斜切效果拐角
     paint.setStrokeCap(Paint.Cap.ROUND);//帽子，笔画头尾是否向外延伸，BUTT不延伸、ROUND延伸出半圆、SQUARE延伸出方形(就是比不延伸长一点，但效果一致)
-    canvas.drawPath(mPath, paint);
+    return paint;
   }
 
   public void move(float mx, float my) {
-    mPath.lineTo(mx, my);
+    mStroke.add(mx, my);
+  }
+
+  public void move(float mx, float my, float pressure, long timeMillis) {
+    mStroke.add(mx, my, pressure, timeMillis);
+  }
+
+  public float getStrokeWidth() {
+    return mBrush.getSize();
+  }
+
+  /**
+   * Get the area this action paints on, including the stroke width
+   * and one more pixel for anti-aliasing.
+   *
+   * @param outBounds the rect to hold the result
+   */
+  public void getBounds(RectF outBounds) {
+    mStroke.getBounds(outBounds);
+    float outset = getStrokeWidth() / 2 + 1;
+    outBounds.inset(-outset, -outset);
   }
-}
\ No newline at end of file
+}
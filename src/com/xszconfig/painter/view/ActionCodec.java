@@ -0,0 +1,204 @@
+package com.xszconfig.painter.view;
+
+import android.graphics.Path;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.io.IOException;
+
+/**
+ * Binary encoding of a single {@link Action} or {@link CropAction}.
+ * <p>
+ * An action is a type byte followed by its fields. Points are quantized to 1/16 pixel
+ * and written as zigzag varints of the delta from the previous point, so a typical stroke
+ * takes two or three bytes per point. The fields of a point are kept together so that
+ * they can be decoded in one pass straight into a {@link Stroke}.
+ * <pre>
+ * stroke: TYPE_STROKE, color int, brush type byte, brush size float, flags byte, points
+ * crop:   TYPE_CROP, move delta x float, move delta y float, points
+ * points: count varint, [start time long], count * (dx, dy, [pressure byte], [dt varint])
+ * </pre>
+ *
+ * @author xszconfig@gmail.com
+ */
+final class ActionCodec {
+
+  static final byte TYPE_STROKE = 1;
+  static final byte TYPE_CROP = 2;
+
+  private static final int FLAG_PRESSURE = 1;
+  private static final int FLAG_TIMESTAMPS = 1 << 1;
+
+  /**
+   * Points are kept to 1/POINT_SCALE of a pixel.
+   */
+  private static final float POINT_SCALE = 16.0f;
+
+  private ActionCodec() {
+  }
+
+  /**
+   * Upper bound of the encoded size of the action, in bytes.
+   */
+  static int maxEncodedSize(Action action) {
+    // type, color, brush, size, flags or deltas, point count, start time
+    final int HEADER_SIZE = 1 + 4 + 1 + 4 + 1 + 8 + 5 + 8;
+    // two varints, one pressure byte and one time varint at most
+    final int POINT_SIZE = 5 + 5 + 1 + 5;
+    return HEADER_SIZE + POINT_SIZE * action.getStroke().getPointCount();
+  }
+
+  static void encode(Action action, ByteBuffer out) {
+    if (action instanceof CropAction) {
+      CropAction cropAction = (CropAction) action;
+      out.put(TYPE_CROP);
+      out.putFloat(cropAction.getMoveDatlaX());
+      out.putFloat(cropAction.getMoveDatlaY());
+      encodePoints(cropAction.getStroke(), out);
+    } else {
+      Stroke stroke = action.getStroke();
+      out.put(TYPE_STROKE);
+      out.putInt(action.getColor());
+      out.put((byte) action.getBrush().getBrushType().ordinal());
+      out.putFloat(action.getBrush().getSize());
+      int flags = 0;
+      if (stroke.hasPressure()) {
+        flags |= FLAG_PRESSURE;
+      }
+      if (stroke.hasTimestamps()) {
+        flags |= FLAG_TIMESTAMPS;
+      }
+      out.put((byte) flags);
+      encodePoints(stroke, out);
+    }
+  }
+
+  /**
+   * Decode one action at the position of the buffer, reading the points straight
+   * into the arrays of its {@link Stroke}.
+   */
+  static Action decode(ByteBuffer in) throws IOException {
+    try {
+      byte type = in.get();
+      if (type == TYPE_STROKE) {
+        int color = in.getInt();
+        int brushTypeIndex = in.get();
+        Brush.BrushType[] brushTypes = Brush.BrushType.values();
+        if (brushTypeIndex < 0 || brushTypeIndex >= brushTypes.length) {
+          throw new IOException("Unknown brush type " + brushTypeIndex);
+        }
+        Brush brush = new Brush(brushTypes[brushTypeIndex], in.getFloat());
+        int flags = in.get();
+        Stroke stroke = decodePoints(in,
+            (flags & FLAG_PRESSURE) != 0, (flags & FLAG_TIMESTAMPS) != 0);
+        return new Action(color, brush, stroke);
+
+      } else if (type == TYPE_CROP) {
+        float moveDeltaX = in.getFloat();
+        float moveDeltaY = in.getFloat();
+        Stroke stroke = decodePoints(in, false, false);
+        if (stroke.getPointCount() == 0) {
+          throw new IOException("Crop path without points");
+        }
+        CropAction cropAction = new CropAction(stroke.getX(0), stroke.getY(0));
+        for (int i = 1; i < stroke.getPointCount(); i++) {
+          cropAction.move(stroke.getX(i), stroke.getY(i));
+        }
+        cropAction.closeCropPath();
+        cropAction.setMoveDatlaX(moveDeltaX);
+        cropAction.setMoveDatlaY(moveDeltaY);
+        Path destinationPath = new Path(cropAction.getCropPath());
+        destinationPath.offset(moveDeltaX, moveDeltaY);
+        cropAction.setDestinationPath(destinationPath);
+        return cropAction;
+      }
+      throw new IOException("Unknown action type " + type);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated action");
+    }
+  }
+
+  private static void encodePoints(Stroke stroke, ByteBuffer out) {
+    int count = stroke.getPointCount();
+    writeVarint(out, count);
+    boolean withPressure = stroke.hasPressure();
+    boolean withTimestamps = stroke.hasTimestamps();
+    long lastTime = count > 0 ? stroke.getTimestamp(0) : 0;
+    if (withTimestamps) {
+      out.putLong(lastTime);
+    }
+
+    int lastX = 0;
+    int lastY = 0;
+    for (int i = 0; i < count; i++) {
+      int x = Math.round(stroke.getX(i) * POINT_SCALE);
+      int y = Math.round(stroke.getY(i) * POINT_SCALE);
+      writeVarint(out, zigzag(x - lastX));
+      writeVarint(out, zigzag(y - lastY));
+      lastX = x;
+      lastY = y;
+
+      if (withPressure) {
+        float pressure = Math.max(0f, Math.min(1f, stroke.getPressure(i)));
+        out.put((byte) Math.round(pressure * 255));
+      }
+      if (withTimestamps) {
+        long time = stroke.getTimestamp(i);
+        writeVarint(out, (int) (time - lastTime));
+        lastTime = time;
+      }
+    }
+  }
+
+  private static Stroke decodePoints(ByteBuffer in, boolean withPressure, boolean withTimestamps)
+      throws IOException {
+    int count = readVarint(in);
+    // Every point takes two bytes at least.
+    if (count < 0 || count > in.remaining() / 2) {
+      throw new IOException("Bad point count " + count);
+    }
+    long time = withTimestamps ? in.getLong() : 0;
+
+    Stroke stroke = new Stroke(count, withPressure, withTimestamps);
+    int x = 0;
+    int y = 0;
+    for (int i = 0; i < count; i++) {
+      x += unzigzag(readVarint(in));
+      y += unzigzag(readVarint(in));
+      float pressure = withPressure ? (in.get() & 0xff) / 255f : Stroke.DEFAULT_PRESSURE;
+      if (withTimestamps) {
+        time += readVarint(in);
+      }
+      stroke.add(x / POINT_SCALE, y / POINT_SCALE, pressure, time);
+    }
+    return stroke;
+  }
+
+  static int zigzag(int n) {
+    return (n << 1) ^ (n >> 31);
+  }
+
+  static int unzigzag(int n) {
+    return (n >>> 1) ^ -(n & 1);
+  }
+
+  static void writeVarint(ByteBuffer out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.put((byte) value);
+  }
+
+  static int readVarint(ByteBuffer in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      byte b = in.get();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+}
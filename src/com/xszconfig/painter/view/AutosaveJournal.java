@@ -0,0 +1,582 @@
+package com.xszconfig.painter.view;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the history of a {@link Sketchpad}, so that a painting survives a crash.
+ * <p>
+ * The state is kept as a snapshot, a {@link SketchDocument} written when the journal starts,
+ * plus a journal of small records appended for every action, undo, redo and clear since.
+ * Records are collected in memory and written out by {@link #sync()}, which the sketchpad
+ * calls when idle, so one fsync commits a group of records.
+ * <p>
+ * The caller only encodes records into a buffer. Full buffers, fsyncs and new snapshots
+ * are handed to a background I/O thread, so drawing never waits for the disk.
+ * <p>
+ * Journal file: magic int, version int, epoch long, then records of
+ * <pre>
+ * body length int, CRC32 of body int, body: type byte, [action by ActionCodec]
+ * </pre>
+ * The snapshot of an epoch is in its own file, and a journal is only replaced by
+ * renaming over it, so that one always has its snapshot around. A record torn by
+ * a crash fails its CRC and ends the replay.
+ * <p>
+ * Not thread safe, meant to be used on the render thread only. The file is only touched
+ * on the I/O thread, except by {@link #recover(List, List)} once all I/O is done.
+ *
+ * @author xszconfig@gmail.com
+ */
+class AutosaveJournal {
+
+  static final String JOURNAL_FILE_NAME = "autosave.journal";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+  private static final int MAGIC = 0x504E544A; // "PNTJ"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 4 + 4 + 8;
+  private static final int FRAME_HEADER_SIZE = 4 + 4;
+
+  private static final byte TYPE_ACTION = 1;
+  private static final byte TYPE_UNDO = 2;
+  private static final byte TYPE_REDO = 3;
+  private static final byte TYPE_CLEAR = 4;
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  /**
+   * Journal longer than this is folded into a new snapshot.
+   */
+  private static final long MAX_JOURNAL_SIZE = 512 * 1024;
+
+  /**
+   * Shared by all journals, so that one left by a sketchpad is done before another reads it.
+   */
+  private static final ExecutorService IO_EXECUTOR = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          return new Thread(new Runnable() {
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              r.run();
+            }
+          }, "AutosaveJournal");
+        }
+      });
+
+  private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+  /**
+   * Id of the journal that opened the files last, by start() or recover(), so that one left
+   * by a finished sketchpad does not delete them under the next one. Only touched on the
+   * I/O thread.
+   */
+  private static int sOwnerId = -1;
+
+  private final int mId = NEXT_ID.incrementAndGet();
+  private final File mDirectory;
+  private final File mJournalFile;
+
+  /**
+   * Only touched on the I/O thread.
+   */
+  private RandomAccessFile mFile;
+  private FileChannel mChannel;
+  /**
+   * Set on the I/O thread when the journal could not be written, autosave stops then.
+   */
+  private volatile boolean mFailed = false;
+
+  /**
+   * Whether records are taken, from start() or recover() until delete().
+   */
+  private boolean mOpen = false;
+  private long mEpoch;
+  /**
+   * Records not handed to the I/O thread yet.
+   */
+  private ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+  /**
+   * Empty buffers given back by the I/O thread.
+   */
+  private final ConcurrentLinkedQueue<ByteBuffer> mFreeBuffers =
+      new ConcurrentLinkedQueue<ByteBuffer>();
+  private boolean mEncodingStart = false;
+  private boolean mUnsynced = false;
+  /**
+   * Size of the journal with all records appended so far.
+   */
+  private long mJournalSize = 0;
+  private final CRC32 mCrc = new CRC32();
+
+  AutosaveJournal(File directory) {
+    mDirectory = directory;
+    mJournalFile = new File(directory, JOURNAL_FILE_NAME);
+  }
+
+  /**
+   * @return true if there is a journal left from last time
+   */
+  boolean exists() {
+    awaitIo();
+    return mJournalFile.exists();
+  }
+
+  boolean isOpen() {
+    return mOpen && !mFailed;
+  }
+
+  /**
+   * Rebuild the state from the snapshot and the journal left, and go on appending to it.
+   *
+   * @param outShownActions filled with the shown actions
+   * @param outRemovedActions filled with the actions to redo
+   * @return the base image of the painting, null for a blank one
+   */
+  Bitmap recover(List<Action> outShownActions, List<Action> outRemovedActions) throws IOException {
+    // Taken over in order with the I/O queued so far, a delete queued from now on is skipped.
+    runIo(new Runnable() {
+      @Override
+      public void run() {
+        sOwnerId = mId;
+      }
+    });
+    RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw");
+    try {
+      FileChannel channel = file.getChannel();
+      MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC || in.getInt() != VERSION) {
+        throw new IOException("Not an autosave journal");
+      }
+      long epoch = in.getLong();
+
+      Bitmap baseImage = null;
+      File snapshotFile = snapshotFileOf(epoch);
+      if (snapshotFile.exists()) {
+        SketchDocument snapshot = SketchDocument.read(snapshotFile);
+        baseImage = snapshot.getBaseImage();
+        outShownActions.addAll(snapshot.getActions());
+      }
+
+      long validEnd = in.position();
+      while (true) {
+        int end = checkRecord(in);
+        if (end < 0) {
+          break;
+        }
+        byte type = in.get();
+        if (type == TYPE_ACTION) {
+          Action action;
+          try {
+            action = ActionCodec.decode(in);
+          } catch (IOException e) {
+            e.printStackTrace();
+            break;
+          }
+          outRemovedActions.clear();
+          outShownActions.add(action);
+        } else if (type == TYPE_UNDO && !outShownActions.isEmpty()) {
+          outRemovedActions.add(outShownActions.remove(outShownActions.size() - 1));
+        } else if (type == TYPE_REDO && !outRemovedActions.isEmpty()) {
+          outShownActions.add(outRemovedActions.remove(outRemovedActions.size() - 1));
+        } else if (type == TYPE_CLEAR) {
+          outShownActions.clear();
+          outRemovedActions.clear();
+          if (baseImage != null) {
+            baseImage.recycle();
+            baseImage = null;
+          }
+        }
+        in.position(end);
+        validEnd = end;
+      }
+
+      // Drop a torn record at the end, new records go right after the last good one.
+      channel.truncate(validEnd);
+      channel.position(validEnd);
+      // Handed to the I/O thread by the next task queued.
+      mFile = file;
+      mChannel = channel;
+      mEpoch = epoch;
+      mOpen = true;
+      mFailed = false;
+      mBuffer.clear();
+      mUnsynced = false;
+      mJournalSize = validEnd;
+      return baseImage;
+    } finally {
+      if (mFile != file) {
+        file.close();
+      }
+    }
+  }
+
+  /**
+   * Check the CRC of the next record and leave the buffer at the start of its body.
+   *
+   * @return end position of the record, -1 past the last valid one
+   */
+  private int checkRecord(ByteBuffer in) {
+    if (in.remaining() < FRAME_HEADER_SIZE) {
+      return -1;
+    }
+    int length = in.getInt();
+    int crc = in.getInt();
+    if (length <= 0 || length > in.remaining()) {
+      return -1;
+    }
+    mCrc.reset();
+    for (int i = 0; i < length; i++) {
+      mCrc.update(in.get(in.position() + i));
+    }
+    if ((int) mCrc.getValue() != crc) {
+      return -1;
+    }
+    return in.position() + length;
+  }
+
+  /**
+   * Start a new journal from the given state, replacing the one there is.
+   * <p>
+   * Records still buffered are dropped, the snapshot has them. The snapshot and the new
+   * journal are written on the I/O thread, records appended from now on go after them.
+   *
+   * @param baseImage the base image of the painting, may be null, must not be recycled
+   * @param shownActions the shown actions
+   * @param removedActions the actions to redo
+   */
+  void start(final Bitmap baseImage, List<Action> shownActions, List<Action> removedActions) {
+    final long epoch = Math.max(System.currentTimeMillis(), mEpoch + 1);
+    mEpoch = epoch;
+    final List<Action> snapshotActions = new ArrayList<Action>(shownActions);
+    mOpen = true;
+    mFailed = false;
+    mBuffer.clear();
+    mBuffer.putInt(MAGIC);
+    mBuffer.putInt(VERSION);
+    mBuffer.putLong(epoch);
+    // The redo stack, as the actions drawn and then undone, all in one buffer.
+    mEncodingStart = true;
+    for (int i = removedActions.size() - 1; i >= 0; i--) {
+      appendAction(removedActions.get(i));
+    }
+    for (int i = 0; i < removedActions.size(); i++) {
+      appendUndo();
+    }
+    mEncodingStart = false;
+    mJournalSize = mBuffer.position();
+    final ByteBuffer header = detachBuffer();
+    mUnsynced = false;
+
+    IO_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        sOwnerId = mId;
+        closeFile();
+        if (!mDirectory.exists()) {
+          mDirectory.mkdirs();
+        }
+        File tmpFile = new File(mDirectory, JOURNAL_FILE_NAME + ".tmp");
+        RandomAccessFile file = null;
+        try {
+          if (baseImage != null || !snapshotActions.isEmpty()) {
+            SketchDocument.write(snapshotFileOf(epoch), baseImage, snapshotActions);
+          }
+          file = new RandomAccessFile(tmpFile, "rw");
+          file.setLength(0);
+          FileChannel channel = file.getChannel();
+          writeFully(channel, header);
+          channel.force(false);
+          if (!tmpFile.renameTo(mJournalFile)) {
+            throw new IOException("Fail to rename " + tmpFile + " to " + mJournalFile);
+          }
+          mFile = file;
+          mChannel = channel;
+          mFailed = false;
+          file = null;
+          deleteSnapshotsExcept(epoch);
+        } catch (IOException e) {
+          e.printStackTrace();
+          mFailed = true;
+        } finally {
+          if (file != null) {
+            try {
+              file.close();
+            } catch (IOException e) {
+              e.printStackTrace();
+            }
+          }
+          recycleBuffer(header);
+        }
+      }
+    });
+  }
+
+  void appendAction(Action action) {
+    ensureBufferFor(1 + ActionCodec.maxEncodedSize(action));
+    int start = beginRecord(TYPE_ACTION);
+    if (start >= 0) {
+      ActionCodec.encode(action, mBuffer);
+      endRecord(start);
+    }
+  }
+
+  void appendUndo() {
+    appendRecord(TYPE_UNDO);
+  }
+
+  void appendRedo() {
+    appendRecord(TYPE_REDO);
+  }
+
+  void appendClear() {
+    appendRecord(TYPE_CLEAR);
+  }
+
+  private void appendRecord(byte type) {
+    ensureBufferFor(1);
+    int start = beginRecord(type);
+    if (start >= 0) {
+      endRecord(start);
+    }
+  }
+
+  /**
+   * Make room in the buffer for a record with a body of the given size.
+   */
+  private void ensureBufferFor(int bodySize) {
+    int size = FRAME_HEADER_SIZE + bodySize;
+    if (!mOpen || mBuffer.remaining() >= size) {
+      return;
+    }
+    if (!mEncodingStart) {
+      flush();
+    }
+    if (mBuffer.remaining() < size) {
+      // Too large for a buffer, or a new journal being encoded all in one.
+      ByteBuffer buffer = ByteBuffer.allocate(
+          Math.max(mBuffer.position() + size, 2 * mBuffer.capacity()));
+      mBuffer.flip();
+      buffer.put(mBuffer);
+      mBuffer = buffer;
+    }
+  }
+
+  /**
+   * @return position of the record in the buffer, -1 if the journal is not open
+   */
+  private int beginRecord(byte type) {
+    if (!mOpen) {
+      return -1;
+    }
+    int start = mBuffer.position();
+    mBuffer.position(start + FRAME_HEADER_SIZE);
+    mBuffer.put(type);
+    return start;
+  }
+
+  private void endRecord(int start) {
+    int bodyStart = start + FRAME_HEADER_SIZE;
+    int length = mBuffer.position() - bodyStart;
+    mCrc.reset();
+    mCrc.update(mBuffer.array(), mBuffer.arrayOffset() + bodyStart, length);
+    mBuffer.putInt(start, length);
+    mBuffer.putInt(start + 4, (int) mCrc.getValue());
+    mJournalSize += FRAME_HEADER_SIZE + length;
+    mUnsynced = true;
+  }
+
+  /**
+   * Take the buffered records, and go on with an empty buffer.
+   */
+  private ByteBuffer detachBuffer() {
+    ByteBuffer buffer = mBuffer;
+    buffer.flip();
+    mBuffer = mFreeBuffers.poll();
+    if (mBuffer == null) {
+      mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+    return buffer;
+  }
+
+  private void recycleBuffer(ByteBuffer buffer) {
+    if (buffer.capacity() == BUFFER_SIZE) {
+      buffer.clear();
+      mFreeBuffers.offer(buffer);
+    }
+  }
+
+  /**
+   * Hand the buffered records to the I/O thread, to be written without waiting for the disk.
+   */
+  private void flush() {
+    if (!mOpen || mBuffer.position() == 0) {
+      return;
+    }
+    if (mFailed) {
+      mBuffer.clear();
+      return;
+    }
+    final ByteBuffer records = detachBuffer();
+    IO_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        write(records);
+        recycleBuffer(records);
+      }
+    });
+  }
+
+  /**
+   * Called on the I/O thread.
+   */
+  private void write(ByteBuffer records) {
+    if (mChannel == null) {
+      return;
+    }
+    try {
+      writeFully(mChannel, records);
+    } catch (IOException e) {
+      e.printStackTrace();
+      // Stop autosaving rather than leave a hole in the journal.
+      closeFile();
+      mFailed = true;
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Write the buffered records and make sure they are on the disk, on the I/O thread.
+   */
+  void sync() {
+    if (!isOpen() || !mUnsynced) {
+      return;
+    }
+    flush();
+    mUnsynced = false;
+    IO_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (mChannel == null) {
+          return;
+        }
+        try {
+          mChannel.force(false);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+  }
+
+  /**
+   * @return true if the journal is long enough to be folded into a new snapshot by
+   * {@link #start(Bitmap, List, List)}
+   */
+  boolean needsCompaction() {
+    return isOpen() && mJournalSize > MAX_JOURNAL_SIZE;
+  }
+
+  /**
+   * Called on the I/O thread.
+   */
+  private void closeFile() {
+    if (mFile != null) {
+      try {
+        mFile.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    mFile = null;
+    mChannel = null;
+  }
+
+  /**
+   * Close and delete the journal and its snapshot, e.g. when the painting is left on purpose.
+   * Nothing is deleted if another journal opened the files since this one did.
+   */
+  void delete() {
+    mOpen = false;
+    mBuffer.clear();
+    mUnsynced = false;
+    IO_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        closeFile();
+        if (sOwnerId != mId) {
+          // Opened again by another sketchpad since, the files are its own now.
+          return;
+        }
+        sOwnerId = -1;
+        mJournalFile.delete();
+        deleteSnapshotsExcept(-1);
+      }
+    });
+  }
+
+  /**
+   * Wait for the I/O queued so far, e.g. by another sketchpad on the same files.
+   */
+  private static void awaitIo() {
+    runIo(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+  }
+
+  /**
+   * Run the given work on the I/O thread after the I/O queued so far, and wait for it.
+   */
+  private static void runIo(Runnable r) {
+    try {
+      IO_EXECUTOR.submit(r).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private File snapshotFileOf(long epoch) {
+    return new File(mDirectory, SNAPSHOT_PREFIX + epoch + SketchDocument.FILE_EXTENSION);
+  }
+
+  private void deleteSnapshotsExcept(long epoch) {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    String keep = snapshotFileOf(epoch).getName();
+    for (File file : files) {
+      String name = file.getName();
+      if (name.startsWith(SNAPSHOT_PREFIX) && !name.equals(keep)) {
+        file.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package com.xszconfig.painter.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mutable bitmaps kept for reuse, so that repeated crops, undos and replays do not
+ * allocate and free large bitmaps every time.
+ * <p>
+ * A bitmap is reused only for the same size and config. The least recently released
+ * bitmaps are recycled once the pool goes over its budget.
+ * <p>
+ * Not thread safe, meant to be used on the render thread only.
+ *
+ * @author xszconfig@gmail.com
+ */
+class BitmapPool {
+
+  /**
+   * Least recently released first.
+   */
+  private final List<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+  private final long mMaxBytes;
+  private long mBytes = 0;
+
+  /**
+   * @param maxBytes memory the pooled bitmaps may take at most
+   */
+  BitmapPool(long maxBytes) {
+    mMaxBytes = maxBytes;
+  }
+
+  /**
+   * Get a transparent bitmap of the given size and config, reused if there is one.
+   * Hand it back by {@link #release(Bitmap)} when done.
+   */
+  Bitmap acquire(int width, int height, Bitmap.Config config) {
+    for (int i = mBitmaps.size() - 1; i >= 0; i--) {
+      Bitmap bitmap = mBitmaps.get(i);
+      if (bitmap.getWidth() == width && bitmap.getHeight() == height
+          && bitmap.getConfig() == config) {
+        mBitmaps.remove(i);
+        mBytes -= bitmap.getByteCount();
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+      }
+    }
+    return Bitmap.createBitmap(width, height, config);
+  }
+
+  /**
+   * Keep the bitmap for reuse. It must not be used by the caller any more.
+   */
+  void release(Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled()) {
+      return;
+    }
+    if (!bitmap.isMutable() || bitmap.getByteCount() > mMaxBytes) {
+      bitmap.recycle();
+      return;
+    }
+    mBitmaps.add(bitmap);
+    mBytes += bitmap.getByteCount();
+    while (mBytes > mMaxBytes) {
+      Bitmap eldest = mBitmaps.remove(0);
+      mBytes -= eldest.getByteCount();
+      eldest.recycle();
+    }
+  }
+
+  /**
+   * Recycle all pooled bitmaps.
+   */
+  void clear() {
+    for (Bitmap bitmap : mBitmaps) {
+      bitmap.recycle();
+    }
+    mBitmaps.clear();
+    mBytes = 0;
+  }
+}
@@ -1,10 +1,12 @@
 package com.xszconfig.painter.view;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.DashPathEffect;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Rect;
 
 /**
  * CropAction is {@code Action} for scissors mode.
@@ -30,10 +32,20 @@ public class CropAction extends Action {
   private float moveDatlaX;
   private float moveDatlaY;
 
+  /**
+   * The area cut out when this crop was performed last time, so that replaying it on the
+   * same content underneath is an erase with the mask and a blit of the pixels.
+   * The content is the same as long as this is the action at the same index of the
+   * history on the same base image, since the actions before it can not change then.
+   */
+  private Bitmap cutoutPixels;
+  private Bitmap cutoutMask;
+  private final Rect cutoutBounds = new Rect();
+  private int cutoutActionIndex = -1;
+  private int cutoutBaseGeneration;
+
   public CropAction(float x, float y) {
-    mPath = new Path();
-    mPath.moveTo(x, y);
-    mPath.lineTo(x, y);
+    mStroke.add(x, y);
 
     mPaint = new Paint();
     mPaint.setAntiAlias(true);// 反锯齿效果
@@ -48,18 +60,31 @@ public class CropAction extends Action {
 
   @Override
   public void draw(Canvas canvas) {
-    canvas.drawPath(mPath, mPaint);
+    canvas.drawPath(getPath(), mPaint);
   }
 
   public void closeCropPath(Canvas canvas) {
-    if (canvas != null && mPaint != null && mPath != null) {
-      mPath.close();
-      canvas.drawPath(mPath, mPaint);
-      setCropPath(mPath);
-      setInternalPath(mPath);
+    if (canvas != null && mPaint != null) {
+      closeCropPath();
+      canvas.drawPath(getCropPath(), mPaint);
     }
   }
 
+  /**
+   * Close the path without drawing it, e.g. when loaded from a document.
+   */
+  void closeCropPath() {
+    Path path = getPath();
+    path.close();
+    setCropPath(path);
+    setInternalPath(path);
+  }
+
+  @Override
+  public float getStrokeWidth() {
+    return thicknessOfBound;
+  }
+
   public Paint getPaint() {
     return mPaint;
   }
@@ -96,6 +121,67 @@ public class CropAction extends Action {
     this.moveDatlaY = moveDatlaY;
   }
 
+  /**
+   * Keep the area cut out by this crop, which takes over the bitmap. The cutout kept
+   * before must be released first.
+   *
+   * @param pixels the pixels cut out at (0, 0), transparent outside the crop path
+   * @param bounds where the pixels were cut out
+   * @param actionIndex index of this action in the history
+   * @param baseGeneration generation of the base image the history is drawn on
+   */
+  void setCutout(Bitmap pixels, Rect bounds, int actionIndex, int baseGeneration) {
+    cutoutPixels = pixels;
+    // The alpha of the pixels is the crop path, the screenshot is opaque.
+    cutoutMask = pixels.extractAlpha();
+    cutoutBounds.set(bounds);
+    cutoutActionIndex = actionIndex;
+    cutoutBaseGeneration = baseGeneration;
+  }
+
+  boolean hasCutoutFor(int actionIndex, int baseGeneration) {
+    return cutoutPixels != null && !cutoutPixels.isRecycled()
+        && cutoutActionIndex == actionIndex && cutoutBaseGeneration == baseGeneration;
+  }
+
+  Bitmap getCutoutPixels() {
+    return cutoutPixels;
+  }
+
+  /**
+   * ALPHA_8 mask of the crop path inside the cutout bounds.
+   */
+  Bitmap getCutoutMask() {
+    return cutoutMask;
+  }
+
+  Rect getCutoutBounds() {
+    return cutoutBounds;
+  }
+
+  /**
+   * @return memory taken by the cutout, in bytes
+   */
+  int getCutoutByteCount() {
+    if (cutoutPixels == null) {
+      return 0;
+    }
+    return cutoutPixels.getByteCount() + cutoutMask.getByteCount();
+  }
+
+  /**
+   * Drop the cutout, its pixels go back to the pool they came from.
+   */
+  void releaseCutout(BitmapPool pool) {
+    if (cutoutPixels != null) {
+      pool.release(cutoutPixels);
+      cutoutMask.recycle();
+      cutoutPixels = null;
+      cutoutMask = null;
+    }
+    cutoutActionIndex = -1;
+  }
+
   public Path getDestinationPath() {
     return destinationPath;
   }
@@ -0,0 +1,139 @@
+package com.xszconfig.painter.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Downscaled copies of the screenshot at 1/2, 1/4 and 1/8 of its size, so that a
+ * zoomed-out viewport is presented from a level close to its scale instead of
+ * filtering the full screenshot down on every frame.
+ * <p>
+ * Levels are made when first asked for, and only the area invalidated since then is
+ * brought up to date, each level from the one above it. Every step halves the size,
+ * so bilinear filtering averages each 2x2 block exactly.
+ * <p>
+ * Not thread safe, meant to be used on the render thread only.
+ *
+ * @author xszconfig@gmail.com
+ */
+class MipChain {
+
+  private static final int LEVEL_COUNT = 3;
+
+  /**
+   * levels[i] is 1 / 2^(i+1) of the screenshot.
+   */
+  private final Bitmap[] mLevels = new Bitmap[LEVEL_COUNT];
+  private final Canvas[] mCanvases = new Canvas[LEVEL_COUNT];
+
+  /**
+   * Area of each level to be updated, in screenshot coordinates.
+   */
+  private final RectF[] mStaleRects = new RectF[LEVEL_COUNT];
+
+  private final Paint mDownsamplePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+  private final Rect mSrcRect = new Rect();
+  private final Rect mDstRect = new Rect();
+  private int mSourceWidth;
+  private int mSourceHeight;
+
+  MipChain() {
+    for (int i = 0; i < LEVEL_COUNT; i++) {
+      mStaleRects[i] = new RectF();
+    }
+  }
+
+  /**
+   * The whole screenshot changed.
+   */
+  void invalidate() {
+    for (RectF staleRect : mStaleRects) {
+      staleRect.set(0, 0, mSourceWidth, mSourceHeight);
+    }
+  }
+
+  /**
+   * @param dirty changed area in screenshot coordinates
+   */
+  void invalidate(RectF dirty) {
+    for (RectF staleRect : mStaleRects) {
+      staleRect.union(dirty);
+    }
+  }
+
+  /**
+   * Get the bitmap to present the screenshot at the given scale, which is the smallest
+   * level still at least as large as the scale, so it is never filtered down by more
+   * than half. The screenshot itself is returned at a scale of 1/2 or more.
+   */
+  Bitmap getLevelFor(Bitmap screenshot, float scale) {
+    int level = -1;
+    float levelScale = 0.5f;
+    while (level + 1 < LEVEL_COUNT && scale <= levelScale) {
+      level++;
+      levelScale /= 2;
+    }
+    if (level < 0) {
+      return screenshot;
+    }
+    if (screenshot.getWidth() != mSourceWidth || screenshot.getHeight() != mSourceHeight) {
+      release();
+      mSourceWidth = screenshot.getWidth();
+      mSourceHeight = screenshot.getHeight();
+      invalidate();
+    }
+    Bitmap source = screenshot;
+    for (int i = 0; i <= level; i++) {
+      if (mLevels[i] == null) {
+        mLevels[i] = Bitmap.createBitmap(Math.max(1, (mSourceWidth + (2 << i) - 1) >> (i + 1)),
+            Math.max(1, (mSourceHeight + (2 << i) - 1) >> (i + 1)), Bitmap.Config.ARGB_8888);
+        mCanvases[i] = new Canvas(mLevels[i]);
+        mStaleRects[i].set(0, 0, mSourceWidth, mSourceHeight);
+      }
+      updateLevel(i, source);
+      source = mLevels[i];
+    }
+    return mLevels[level];
+  }
+
+  /**
+   * Bring the stale area of a level up to date from the level above it.
+   */
+  private void updateLevel(int level, Bitmap source) {
+    RectF staleRect = mStaleRects[level];
+    if (staleRect.isEmpty()) {
+      return;
+    }
+    Bitmap target = mLevels[level];
+    int shift = level + 1;
+    mDstRect.set((int) Math.floor(staleRect.left) >> shift,
+        (int) Math.floor(staleRect.top) >> shift,
+        ((int) Math.ceil(staleRect.right) + (1 << shift) - 1) >> shift,
+        ((int) Math.ceil(staleRect.bottom) + (1 << shift) - 1) >> shift);
+    if (mDstRect.intersect(0, 0, target.getWidth(), target.getHeight())) {
+      mSrcRect.set(mDstRect.left * 2, mDstRect.top * 2,
+          Math.min(mDstRect.right * 2, source.getWidth()),
+          Math.min(mDstRect.bottom * 2, source.getHeight()));
+      mDstRect.right = (mSrcRect.right + 1) / 2;
+      mDstRect.bottom = (mSrcRect.bottom + 1) / 2;
+      mCanvases[level].drawBitmap(source, mSrcRect, mDstRect, mDownsamplePaint);
+    }
+    staleRect.setEmpty();
+  }
+
+  /**
+   * Recycle all levels, they are made again when asked for.
+   */
+  void release() {
+    for (int i = 0; i < LEVEL_COUNT; i++) {
+      if (mLevels[i] != null) {
+        mLevels[i].recycle();
+        mLevels[i] = null;
+        mCanvases[i] = null;
+      }
+    }
+  }
+}
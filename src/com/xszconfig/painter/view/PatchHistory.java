@@ -0,0 +1,209 @@
+package com.xszconfig.painter.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * History engine that undoes and redoes by pixels instead of replaying actions.
+ * <p>
+ * For every action performed on the screenshot, the pixels of its affected area are kept
+ * before and after it as {@link PixelPatch}es. Undo writes the "before" patch back and redo
+ * writes the "after" patch back, so both cost the area of the action, not the length of
+ * the history.
+ * <p>
+ * The "before" pixels come from a copy of the screenshot as of the last recorded action,
+ * which is kept up to date with the "after" patches.
+ * <p>
+ * When the patches go over the memory budget, the oldest ones are dropped. Undo past them
+ * returns false, and the caller replays the shown actions from the nearest keyframe instead,
+ * then calls {@link #sync(Bitmap)} so that the newer patches stay in use.
+ *
+ * @author xszconfig@gmail.com
+ */
+class PatchHistory {
+
+  /**
+   * The patches share at most this part of the heap.
+   */
+  private static final int HEAP_FRACTION = 8;
+
+  private static class Entry {
+    /**
+     * Size of shownActions with this action as the last one.
+     */
+    final int actionCount;
+    final PixelPatch before;
+    final PixelPatch after;
+
+    Entry(int actionCount, PixelPatch before, PixelPatch after) {
+      this.actionCount = actionCount;
+      this.before = before;
+      this.after = after;
+    }
+
+    long getByteCount() {
+      return (long) before.getByteCount() + after.getByteCount();
+    }
+  }
+
+  private final List<Entry> mUndoEntries = new ArrayList<Entry>();
+  private final List<Entry> mRedoEntries = new ArrayList<Entry>();
+  private final long mMemoryBudget;
+  private long mBytesUsed = 0;
+
+  /**
+   * The screenshot as of the last recorded action.
+   */
+  private Bitmap mCommittedBitmap;
+  private final Rect mTmpRect = new Rect();
+
+  PatchHistory() {
+    mMemoryBudget = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+  }
+
+  /**
+   * Make sure there is a copy of the screenshot to take "before" patches from,
+   * recorded patches are kept if there already is one of the right size.
+   */
+  void ensureCommittedBitmap(Bitmap screenshot) {
+    if (mCommittedBitmap == null
+        || mCommittedBitmap.getWidth() != screenshot.getWidth()
+        || mCommittedBitmap.getHeight() != screenshot.getHeight()) {
+      reset(screenshot);
+    }
+  }
+
+  /**
+   * Take the screenshot as it is now as the state of the last recorded action, after it
+   * was brought there another way, e.g. replayed. The patches recorded are kept, they are
+   * still right for the actions they were taken for.
+   */
+  void sync(Bitmap screenshot) {
+    if (mCommittedBitmap == null
+        || mCommittedBitmap.getWidth() != screenshot.getWidth()
+        || mCommittedBitmap.getHeight() != screenshot.getHeight()) {
+      reset(screenshot);
+      return;
+    }
+    // The screenshot is opaque, so drawing it over replaces every pixel.
+    new Canvas(mCommittedBitmap).drawBitmap(screenshot, 0, 0, null);
+  }
+
+  /**
+   * Forget all patches and take the screenshot as it is now as the starting point.
+   */
+  void reset(Bitmap screenshot) {
+    mUndoEntries.clear();
+    mRedoEntries.clear();
+    mBytesUsed = 0;
+    if (mCommittedBitmap != null) {
+      mCommittedBitmap.recycle();
+    }
+    mCommittedBitmap = screenshot.copy(Bitmap.Config.ARGB_8888, true);
+  }
+
+  void release() {
+    mUndoEntries.clear();
+    mRedoEntries.clear();
+    mBytesUsed = 0;
+    if (mCommittedBitmap != null) {
+      mCommittedBitmap.recycle();
+      mCommittedBitmap = null;
+    }
+  }
+
+  void clearRedo() {
+    for (Entry entry : mRedoEntries) {
+      mBytesUsed -= entry.getByteCount();
+    }
+    mRedoEntries.clear();
+  }
+
+  /**
+   * Record an action just performed on the screenshot.
+   *
+   * @param screenshot the screenshot with the action performed
+   * @param affected the area the action changed
+   * @param actionCount size of shownActions with this action added
+   */
+  void record(Bitmap screenshot, RectF affected, int actionCount) {
+    if (mCommittedBitmap == null) {
+      // Nothing to take the "before" pixels from, undo of this action will replay instead.
+      reset(screenshot);
+      return;
+    }
+    affected.roundOut(mTmpRect);
+    if (!mTmpRect.intersect(0, 0, screenshot.getWidth(), screenshot.getHeight())) {
+      mTmpRect.set(0, 0, 0, 0);
+    }
+    PixelPatch before = PixelPatch.capture(mCommittedBitmap, mTmpRect);
+    PixelPatch after = PixelPatch.capture(screenshot, mTmpRect);
+    after.apply(mCommittedBitmap);
+    Entry entry = new Entry(actionCount, before, after);
+    mUndoEntries.add(entry);
+    mBytesUsed += entry.getByteCount();
+    trimToBudget();
+  }
+
+  /**
+   * Drop the oldest undo patches until the budget is met, then the redo patches
+   * furthest from the shown actions.
+   */
+  private void trimToBudget() {
+    while (mBytesUsed > mMemoryBudget && !mUndoEntries.isEmpty()) {
+      mBytesUsed -= mUndoEntries.remove(0).getByteCount();
+    }
+    while (mBytesUsed > mMemoryBudget && !mRedoEntries.isEmpty()) {
+      mBytesUsed -= mRedoEntries.remove(0).getByteCount();
+    }
+  }
+
+  /**
+   * Undo the last action, if the patches recorded match the shown actions.
+   *
+   * @param actionCount size of shownActions before undo
+   * @param outDirty the area of the screenshot changed
+   * @return false if there is no patch for that action, replay is needed then
+   */
+  boolean undo(Bitmap screenshot, int actionCount, RectF outDirty) {
+    int last = mUndoEntries.size() - 1;
+    if (last < 0 || mUndoEntries.get(last).actionCount != actionCount) {
+      return false;
+    }
+    Entry entry = mUndoEntries.remove(last);
+    entry.before.apply(screenshot);
+    entry.before.apply(mCommittedBitmap);
+    mRedoEntries.add(entry);
+
+    entry.before.getBounds(mTmpRect);
+    outDirty.set(mTmpRect);
+    return true;
+  }
+
+  /**
+   * Redo the last undone action, if the patches recorded match the shown actions.
+   *
+   * @param actionCount size of shownActions after redo
+   * @param outDirty the area of the screenshot changed
+   * @return false if there is no patch for that action, perform it again then
+   */
+  boolean redo(Bitmap screenshot, int actionCount, RectF outDirty) {
+    int last = mRedoEntries.size() - 1;
+    if (last < 0 || mRedoEntries.get(last).actionCount != actionCount) {
+      return false;
+    }
+    Entry entry = mRedoEntries.remove(last);
+    entry.after.apply(screenshot);
+    entry.after.apply(mCommittedBitmap);
+    mUndoEntries.add(entry);
+
+    entry.after.getBounds(mTmpRect);
+    outDirty.set(mTmpRect);
+    return true;
+  }
+}
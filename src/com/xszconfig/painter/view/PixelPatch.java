@@ -0,0 +1,137 @@
+package com.xszconfig.painter.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * A run-length encoded copy of the ARGB pixels in a rectangle of a bitmap.
+ * <p>
+ * Each row is encoded on its own as packets of ints. A positive header n is followed
+ * by one color repeated n times, a negative header -n is followed by n literal colors.
+ * Thin strokes on a plain background compress to a few ints per row.
+ *
+ * @author xszconfig@gmail.com
+ */
+final class PixelPatch {
+
+  /**
+   * Shortest run worth a packet of its own.
+   */
+  private static final int MIN_RUN = 3;
+
+  private final int mLeft;
+  private final int mTop;
+  private final int mWidth;
+  private final int mHeight;
+  private final int[] mData;
+
+  private PixelPatch(int left, int top, int width, int height, int[] data) {
+    mLeft = left;
+    mTop = top;
+    mWidth = width;
+    mHeight = height;
+    mData = data;
+  }
+
+  /**
+   * Copy and encode the pixels of the given area.
+   *
+   * @param bitmap the bitmap to copy from
+   * @param rect the area to copy, must be inside the bitmap
+   */
+  static PixelPatch capture(Bitmap bitmap, Rect rect) {
+    int width = rect.width();
+    int height = rect.height();
+    if (width <= 0 || height <= 0) {
+      return new PixelPatch(rect.left, rect.top, 0, 0, new int[0]);
+    }
+
+    int[] row = new int[width];
+    // Enough for a plain area, grows on demand.
+    int[] data = new int[height * 2 + 16];
+    int size = 0;
+    for (int y = 0; y < height; y++) {
+      bitmap.getPixels(row, 0, width, rect.left, rect.top + y, width, 1);
+      int x = 0;
+      while (x < width) {
+        // Worst case of this row is one literal packet of the rest.
+        if (data.length - size < width - x + 1) {
+          int[] grown = new int[Math.max(data.length * 2, size + width - x + 1)];
+          System.arraycopy(data, 0, grown, 0, size);
+          data = grown;
+        }
+
+        int run = runLength(row, x, width);
+        if (run >= MIN_RUN) {
+          data[size++] = run;
+          data[size++] = row[x];
+          x += run;
+          continue;
+        }
+
+        // Collect literals until the next run long enough.
+        int start = x;
+        while (x < width && runLength(row, x, width) < MIN_RUN) {
+          x++;
+        }
+        int count = x - start;
+        data[size++] = -count;
+        System.arraycopy(row, start, data, size, count);
+        size += count;
+      }
+    }
+
+    int[] trimmed = new int[size];
+    System.arraycopy(data, 0, trimmed, 0, size);
+    return new PixelPatch(rect.left, rect.top, width, height, trimmed);
+  }
+
+  private static int runLength(int[] row, int from, int width) {
+    int color = row[from];
+    int end = from + 1;
+    while (end < width && row[end] == color) {
+      end++;
+    }
+    return end - from;
+  }
+
+  /**
+   * Write the pixels back to where they were copied from.
+   */
+  void apply(Bitmap bitmap) {
+    if (mWidth == 0) {
+      return;
+    }
+
+    int[] row = new int[mWidth];
+    int index = 0;
+    for (int y = 0; y < mHeight; y++) {
+      int x = 0;
+      while (x < mWidth) {
+        int header = mData[index++];
+        if (header > 0) {
+          int color = mData[index++];
+          for (int end = x + header; x < end; x++) {
+            row[x] = color;
+          }
+        } else {
+          System.arraycopy(mData, index, row, x, -header);
+          index -= header;
+          x -= header;
+        }
+      }
+      bitmap.setPixels(row, 0, mWidth, mLeft, mTop + y, mWidth, 1);
+    }
+  }
+
+  void getBounds(Rect outBounds) {
+    outBounds.set(mLeft, mTop, mLeft + mWidth, mTop + mHeight);
+  }
+
+  /**
+   * @return memory taken by the encoded pixels, in bytes
+   */
+  int getByteCount() {
+    return mData.length * 4;
+  }
+}
@@ -0,0 +1,168 @@
+package com.xszconfig.painter.view;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Uncompressed ARGB copy of the latest painting, kept in the app cache directory so that
+ * loading the painting again is a copy from a memory map instead of a full decode or a
+ * replay of its document.
+ * <p>
+ * Only one painting is cached, writing the cache for another one replaces it. The cache
+ * records the path, length and modification time of the image it was made for, and is
+ * ignored once the image does not match them any more.
+ * <pre>
+ * magic, width, height (ints), image length, image modification time (longs),
+ * image path length (int), image path (UTF-8), pixels
+ * </pre>
+ *
+ * @author xszconfig@gmail.com
+ */
+public class RawBitmapCache {
+
+  public static final String FILE_EXTENSION = ".raw";
+
+  /**
+   * Extension of the images older versions kept caches for.
+   */
+  private static final String IMAGE_EXTENSION = ".png";
+
+  private static final String CACHE_FILE_NAME = "painting" + FILE_EXTENSION;
+
+  private static final int MAGIC = 0x50525732; // "PRW2"
+  private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 4;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private RawBitmapCache() {
+  }
+
+  public static File cacheFileIn(File cacheDirectory) {
+    return new File(cacheDirectory, CACHE_FILE_NAME);
+  }
+
+  /**
+   * Keep the pixels of the image, which must be written already, in place of the
+   * painting cached before.
+   *
+   * @param cacheDirectory where the cache goes, e.g. {@link android.content.Context#getCacheDir()}
+   * @param bitmap the pixels of the image file, only ARGB_8888 is kept
+   */
+  public static void write(File cacheDirectory, File imageFile, Bitmap bitmap)
+      throws IOException {
+    if (bitmap.getConfig() != Bitmap.Config.ARGB_8888 || !imageFile.exists()) {
+      return;
+    }
+    byte[] path = imageFile.getAbsolutePath().getBytes(UTF_8);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + path.length);
+    header.putInt(MAGIC);
+    header.putInt(bitmap.getWidth());
+    header.putInt(bitmap.getHeight());
+    header.putLong(imageFile.length());
+    header.putLong(imageFile.lastModified());
+    header.putInt(path.length);
+    header.put(path);
+    header.flip();
+
+    if (!cacheDirectory.exists()) {
+      cacheDirectory.mkdirs();
+    }
+    File cacheFile = cacheFileIn(cacheDirectory);
+    File tmpFile = new File(cacheFile.getPath() + ".tmp");
+    RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      int headerSize = header.remaining();
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      MappedByteBuffer pixels = channel.map(FileChannel.MapMode.READ_WRITE,
+          headerSize, bitmap.getByteCount());
+      bitmap.copyPixelsToBuffer(pixels);
+      pixels.force();
+    } finally {
+      raf.close();
+    }
+    if (!tmpFile.renameTo(cacheFile)) {
+      tmpFile.delete();
+      throw new IOException("Fail to rename " + tmpFile + " to " + cacheFile);
+    }
+  }
+
+  /**
+   * @return the pixels of the image, null if the latest painting cached is not the image
+   * as it is now
+   */
+  public static Bitmap read(File cacheDirectory, File imageFile) {
+    File cacheFile = cacheFileIn(cacheDirectory);
+    if (!cacheFile.exists() || !imageFile.exists()) {
+      return null;
+    }
+    try {
+      RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+          return null;
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int magic = buffer.getInt();
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        long imageLength = buffer.getLong();
+        long imageLastModified = buffer.getLong();
+        int pathLength = buffer.getInt();
+        if (magic != MAGIC || imageLength != imageFile.length()
+            || imageLastModified != imageFile.lastModified()
+            || pathLength < 0 || pathLength > buffer.remaining()) {
+          return null;
+        }
+        byte[] path = new byte[pathLength];
+        buffer.get(path);
+        if (!imageFile.getAbsolutePath().equals(new String(path, UTF_8))
+            || width <= 0 || height <= 0 || buffer.remaining() != (long) width * height * 4) {
+          return null;
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.copyPixelsFromBuffer(buffer);
+        return bitmap;
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Delete the caches older versions kept next to each image, e.g. "a.png.raw" for "a.png".
+   * Only files named after an image still there are taken for such a cache.
+   */
+  public static void deleteCachesNextToImages(File imageDirectory) {
+    File[] files = imageDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (!file.isFile() || !name.endsWith(IMAGE_EXTENSION + FILE_EXTENSION)) {
+        continue;
+      }
+      File imageFile = new File(imageDirectory,
+          name.substring(0, name.length() - FILE_EXTENSION.length()));
+      if (imageFile.isFile()) {
+        file.delete();
+      }
+    }
+  }
+}
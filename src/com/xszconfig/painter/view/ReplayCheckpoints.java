@@ -0,0 +1,183 @@
+package com.xszconfig.painter.view;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keyframes of the screenshot taken while actions are shown on the {@link Sketchpad}.
+ * <p>
+ * Undo replays the shown actions from the nearest keyframe instead of from the very
+ * beginning, so its latency is bounded no matter how long the history is.
+ * A keyframe is taken once the estimated replay cost since the last one goes over
+ * a threshold. When the keyframes go over the memory budget, every other one is
+ * dropped and the threshold is doubled.
+ *
+ * @author xszconfig@gmail.com
+ */
+class ReplayCheckpoints {
+
+  /**
+   * Replay cost between two keyframes, in full screens of pixels drawn.
+   */
+  private static final float DEFAULT_SCREENS_PER_CHECKPOINT = 8.0f;
+
+  /**
+   * A CropAction copies and draws the screen several times when replayed.
+   */
+  private static final float SCREENS_PER_CROP = 3.0f;
+
+  /**
+   * The keyframes share at most this part of the heap.
+   */
+  private static final int HEAP_FRACTION = 8;
+
+  static class Checkpoint {
+    final int actionCount;
+    final Bitmap bitmap;
+
+    Checkpoint(int actionCount, Bitmap bitmap) {
+      this.actionCount = actionCount;
+      this.bitmap = bitmap;
+    }
+  }
+
+  /**
+   * Sorted by actionCount.
+   */
+  private final List<Checkpoint> mCheckpoints = new ArrayList<Checkpoint>();
+  private final long mMemoryBudget;
+  private float mScreensPerCheckpoint = DEFAULT_SCREENS_PER_CHECKPOINT;
+  private long mBytesUsed = 0;
+  private final RectF mTmpBounds = new RectF();
+
+  ReplayCheckpoints() {
+    mMemoryBudget = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+  }
+
+  /**
+   * Find the keyframe with most actions performed, but no more than the given count.
+   *
+   * @return null if there is no such keyframe
+   */
+  Checkpoint findNearest(int actionCount) {
+    for (int i = mCheckpoints.size() - 1; i >= 0; i--) {
+      Checkpoint checkpoint = mCheckpoints.get(i);
+      if (checkpoint.actionCount <= actionCount) {
+        return checkpoint;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Take a keyframe of the screenshot if replaying up to the end of shownActions
+   * from the nearest keyframe became too expensive.
+   *
+   * @param shownActions actions already performed on the screenshot
+   * @param screenshot the screenshot with all shownActions performed
+   */
+  void onActionsShown(List<Action> shownActions, Bitmap screenshot) {
+    int actionCount = shownActions.size();
+    Checkpoint nearest = findNearest(actionCount);
+    int start = nearest == null ? 0 : nearest.actionCount;
+    if (start == actionCount) {
+      return;
+    }
+
+    float screenPixels = (float) screenshot.getWidth() * screenshot.getHeight();
+    float cost = 0;
+    for (int i = start; i < actionCount; i++) {
+      cost += estimateReplayCost(shownActions.get(i), screenPixels);
+    }
+    if (cost < mScreensPerCheckpoint * screenPixels) {
+      return;
+    }
+
+    long bytes = (long) screenshot.getRowBytes() * screenshot.getHeight();
+    if (mBytesUsed + bytes > mMemoryBudget) {
+      thinOut();
+      if (mBytesUsed + bytes > mMemoryBudget) {
+        return;
+      }
+    }
+    Bitmap copy = screenshot.copy(Bitmap.Config.ARGB_8888, false);
+    if (copy == null) {
+      return;
+    }
+    // discardAfter() keeps the list sorted, the new one is always the last.
+    mCheckpoints.add(new Checkpoint(actionCount, copy));
+    mBytesUsed += bytes;
+  }
+
+  /**
+   * Keep a keyframe made elsewhere, e.g. the flattened painting loaded from its cache.
+   * Keyframes with as many actions performed or more are dropped.
+   *
+   * @param bitmap the screenshot with the given number of actions performed, owned by the
+   *               keyframes from now on
+   */
+  void add(int actionCount, Bitmap bitmap) {
+    discardAfter(actionCount - 1);
+    long bytes = (long) bitmap.getRowBytes() * bitmap.getHeight();
+    if (mBytesUsed + bytes > mMemoryBudget) {
+      thinOut();
+      if (mBytesUsed + bytes > mMemoryBudget) {
+        bitmap.recycle();
+        return;
+      }
+    }
+    mCheckpoints.add(new Checkpoint(actionCount, bitmap));
+    mBytesUsed += bytes;
+  }
+
+  /**
+   * Drop keyframes with more actions performed than the given count,
+   * call it when the actions after that count are changed.
+   */
+  void discardAfter(int actionCount) {
+    for (int i = mCheckpoints.size() - 1; i >= 0; i--) {
+      Checkpoint checkpoint = mCheckpoints.get(i);
+      if (checkpoint.actionCount <= actionCount) {
+        break;
+      }
+      remove(i);
+    }
+  }
+
+  void clear() {
+    discardAfter(-1);
+    mScreensPerCheckpoint = DEFAULT_SCREENS_PER_CHECKPOINT;
+  }
+
+  /**
+   * Drop every other keyframe and take them half as often from now on.
+   */
+  private void thinOut() {
+    for (int i = mCheckpoints.size() - 1; i >= 0; i--) {
+      if (i % 2 == 0) {
+        remove(i);
+      }
+    }
+    mScreensPerCheckpoint *= 2;
+  }
+
+  private void remove(int index) {
+    Checkpoint checkpoint = mCheckpoints.remove(index);
+    mBytesUsed -= (long) checkpoint.bitmap.getRowBytes() * checkpoint.bitmap.getHeight();
+    checkpoint.bitmap.recycle();
+  }
+
+  /**
+   * Roughly the number of pixels touched when the action is performed again.
+   */
+  private float estimateReplayCost(Action action, float screenPixels) {
+    if (action instanceof CropAction) {
+      return SCREENS_PER_CROP * screenPixels;
+    }
+    action.getBounds(mTmpBounds);
+    return mTmpBounds.width() * mTmpBounds.height();
+  }
+}
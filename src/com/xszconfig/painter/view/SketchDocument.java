@@ -0,0 +1,203 @@
+package com.xszconfig.painter.view;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An editable painting: the image it was started from plus the actions drawn on it,
+ * so that the painting can be opened again with its history instead of as a flat PNG.
+ * <p>
+ * The file is a fixed header, the actions encoded by {@link ActionCodec} and then the base
+ * image as a PNG. It is read through a memory map, the actions are decoded straight from
+ * the mapped pages. Version 1 documents kept the raw pixels of the base image instead,
+ * they are still read.
+ * <pre>
+ * magic, version, width, height, flags, action count, action bytes (ints)
+ * actions
+ * base image PNG (raw pixels in version 1), if FLAG_BASE_IMAGE
+ * </pre>
+ * Writing compresses the base image, so it is meant to be done on a background thread.
+ *
+ * @author xszconfig@gmail.com
+ */
+public class SketchDocument {
+
+  public static final String FILE_EXTENSION = ".painter";
+
+  private static final int MAGIC = 0x504E5452; // "PNTR"
+  private static final int VERSION = 2;
+  private static final int VERSION_RAW_BASE_IMAGE = 1;
+  private static final int HEADER_SIZE = 7 * 4;
+
+  private static final int FLAG_BASE_IMAGE = 1;
+
+  private final Bitmap mBaseImage;
+  private final List<Action> mActions;
+
+  private SketchDocument(Bitmap baseImage, List<Action> actions) {
+    mBaseImage = baseImage;
+    mActions = actions;
+  }
+
+  /**
+   * @return the image the actions are drawn on, null for a blank sketchpad
+   */
+  public Bitmap getBaseImage() {
+    return mBaseImage;
+  }
+
+  public List<Action> getActions() {
+    return mActions;
+  }
+
+  /**
+   * The document kept next to an exported image, e.g. "a.png" goes with "a.painter".
+   */
+  public static File documentFileFor(File imageFile) {
+    String name = imageFile.getName();
+    int dot = name.lastIndexOf('.');
+    if (dot > 0) {
+      name = name.substring(0, dot);
+    }
+    return new File(imageFile.getParentFile(), name + FILE_EXTENSION);
+  }
+
+  /**
+   * Write the document, replacing the file only once it is written completely.
+   *
+   * @param baseImage the image the actions are drawn on, may be null
+   * @param actions the actions in the order they were drawn
+   */
+  public static void write(File file, Bitmap baseImage, List<Action> actions) throws IOException {
+    int maxSize = 0;
+    for (Action action : actions) {
+      maxSize += ActionCodec.maxEncodedSize(action);
+    }
+    ByteBuffer encodedActions = ByteBuffer.allocate(maxSize);
+    for (Action action : actions) {
+      ActionCodec.encode(action, encodedActions);
+    }
+    encodedActions.flip();
+
+    boolean hasBaseImage = baseImage != null && !baseImage.isRecycled();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(hasBaseImage ? baseImage.getWidth() : 0);
+    header.putInt(hasBaseImage ? baseImage.getHeight() : 0);
+    header.putInt(hasBaseImage ? FLAG_BASE_IMAGE : 0);
+    header.putInt(actions.size());
+    header.putInt(encodedActions.remaining());
+    header.flip();
+
+    File parent = file.getParentFile();
+    if (parent != null && !parent.exists()) {
+      parent.mkdirs();
+    }
+    File tmpFile = new File(file.getPath() + ".tmp");
+    RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      while (encodedActions.hasRemaining()) {
+        channel.write(encodedActions);
+      }
+      if (hasBaseImage) {
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+        if (!baseImage.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+          throw new IOException("Fail to compress the base image of " + file);
+        }
+        out.flush();
+      }
+      channel.force(false);
+    } finally {
+      raf.close();
+    }
+    if (!tmpFile.renameTo(file)) {
+      tmpFile.delete();
+      throw new IOException("Fail to rename " + tmpFile + " to " + file);
+    }
+  }
+
+  public static SketchDocument read(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return read(buffer);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated document " + file);
+    } finally {
+      // The mapping stays valid after the channel is closed.
+      raf.close();
+    }
+  }
+
+  private static SketchDocument read(ByteBuffer buffer) throws IOException {
+    if (buffer.getInt() != MAGIC) {
+      throw new IOException("Not a painter document");
+    }
+    int version = buffer.getInt();
+    if (version != VERSION && version != VERSION_RAW_BASE_IMAGE) {
+      throw new IOException("Unsupported document version " + version);
+    }
+    int width = buffer.getInt();
+    int height = buffer.getInt();
+    int flags = buffer.getInt();
+    int actionCount = buffer.getInt();
+    int actionBytes = buffer.getInt();
+    if (actionCount < 0 || actionBytes < 0 || actionBytes > buffer.remaining()) {
+      throw new IOException("Bad action section");
+    }
+
+    ByteBuffer encodedActions = buffer.slice();
+    encodedActions.limit(actionBytes);
+    List<Action> actions = new ArrayList<Action>(actionCount);
+    for (int i = 0; i < actionCount; i++) {
+      actions.add(ActionCodec.decode(encodedActions));
+    }
+    buffer.position(buffer.position() + actionBytes);
+
+    Bitmap baseImage = null;
+    if ((flags & FLAG_BASE_IMAGE) != 0) {
+      if (width <= 0 || height <= 0) {
+        throw new IOException("Bad base image section");
+      }
+      if (version == VERSION_RAW_BASE_IMAGE) {
+        if (buffer.remaining() != width * height * 4) {
+          throw new IOException("Bad base image section");
+        }
+        baseImage = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        baseImage.copyPixelsFromBuffer(buffer.slice());
+      } else {
+        byte[] png = new byte[buffer.remaining()];
+        buffer.get(png);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        baseImage = BitmapFactory.decodeByteArray(png, 0, png.length, options);
+        if (baseImage == null
+            || baseImage.getWidth() != width || baseImage.getHeight() != height) {
+          throw new IOException("Bad base image section");
+        }
+      }
+    }
+    return new SketchDocument(baseImage, actions);
+  }
+}
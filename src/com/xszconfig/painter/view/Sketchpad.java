@@ -1,5 +1,6 @@
 package com.xszconfig.painter.view;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -8,8 +9,10 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PorterDuff.Mode;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Region;
+import android.os.Looper;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.view.MotionEvent;
@@ -19,17 +22,48 @@ import android.view.SurfaceView;
 
 import com.xszconfig.utils.StringUtil;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * The Sketchpad to draw paintings on. This is a {@link android.view.SurfaceView}.
+ * <p>
+ * By default the screenshot and the surface are owned by a {@link SketchpadRenderThread}:
+ * touch events are only recorded on the UI thread and handled on the render thread,
+ * which presents at most once per vsync. See {@link #setRenderThreadEnabled(boolean)}.
  */
 
-public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, SketchpadGestureListener.ViewRectChangedListener {
+public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback,
+    SketchpadGestureListener.ViewRectChangedListener, SketchpadRenderThread.Renderer {
 
   private static int DEFAULT_SKETCHPAD_BG_COLOR = Color.WHITE;
 
+  private static final String AUTOSAVE_DIRECTORY = "autosave";
+  /**
+   * Autosave records are committed to disk after this long without new ones.
+   */
+  private static final long AUTOSAVE_IDLE_MILLIS = 500;
+
+  /**
+   * The bitmap pool keeps this many full-screen bitmaps at most.
+   */
+  private static final int MAX_POOLED_SCREENS = 3;
+
+  /**
+   * Sizes of crop buffers are rounded up to this, so that they can be reused.
+   */
+  private static final int CROP_BUFFER_ALIGNMENT = 64;
+
+  /**
+   * From this scale on, the viewport is drawn again from the actions once it stays still
+   * for a while, see {@link ViewportRasterizer}.
+   */
+  private static final float SHARP_VIEWPORT_MIN_SCALE = 2.0f;
+  private static final long SHARP_VIEWPORT_IDLE_MILLIS = 150;
+
   private SurfaceHolder mSurfaceHolder;
   private Bitmap screenshotBitmap;
   private Canvas screenshotCanvas;
@@ -49,6 +83,35 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
    */
   private List<Action> removedActions;
 
+  /**
+   * Sizes of shownActions and removedActions, for the UI thread.
+   * Only written on the render thread.
+   */
+  private volatile int mShownActionCount = 0;
+  private volatile int mRemovedActionCount = 0;
+
+  /**
+   * Keyframes of the screenshot to replay shownActions from.
+   */
+  private final ReplayCheckpoints mCheckpoints = new ReplayCheckpoints();
+
+  /**
+   * How undo and redo bring back the screenshot.
+   */
+  public enum HistoryMode {
+    /**
+     * Replay shownActions from the nearest keyframe.
+     */
+    REPLAY,
+    /**
+     * Write back the pixels kept before and after each action.
+     */
+    PIXEL_PATCH,
+  }
+
+  private HistoryMode mHistoryMode = HistoryMode.REPLAY;
+  private final PatchHistory mPatchHistory = new PatchHistory();
+
   /**
    * The bitmap to hold last saved painting if saved.
    */
@@ -59,12 +122,51 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
    */
   private String savedFilePath = "";
 
+  /**
+   * Changed every time the base image changes, see {@link CropAction#hasCutoutFor(int, int)}.
+   * Only touched on the render thread.
+   */
+  private int mBaseGeneration = 0;
+
+  /**
+   * Crop actions that keep a cutout, least recently used first.
+   * Only touched on the render thread.
+   */
+  private final ArrayDeque<CropAction> mCachedCutouts = new ArrayDeque<CropAction>();
+  private long mCachedCutoutBytes = 0;
+  private final long mMaxCachedCutoutBytes = Runtime.getRuntime().maxMemory() / 16;
+  private final Paint mCutoutMaskPaint = new Paint();
+
+  /**
+   * The document of the saved painting, once its actions are loaded into shownActions.
+   */
+  private String mLoadedDocumentPath;
+  private File mCacheDirectory;
+
+  /**
+   * Crash-safe autosave of the painting, in the files dir of the app.
+   * Only touched on the render thread.
+   */
+  private AutosaveJournal mAutosaveJournal;
+  private boolean mAutosaveStarted = false;
+  /**
+   * Whether the painting came back from the autosave instead of the saved painting.
+   */
+  private boolean mPaintingRecovered = false;
+
+  private final Runnable mSyncAutosaveRunnable = new Runnable() {
+    @Override
+    public void run() {
+      mAutosaveJournal.sync();
+    }
+  };
+
   private SketchpadGestureListener mGestureListener;
   private ScaleGestureDetector mScaleDetector;
   private int mForceWidth ;
   private int mForceHeight;
 
-  private boolean mIsCropMode = false;
+  private volatile boolean mIsCropMode = false;
   private CropModeListener mCropModeListener;
   public interface CropModeListener {
     public void onModeChanged(boolean newMode);
@@ -74,11 +176,53 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
     this.mCropModeListener = listener;
   }
 
+  public interface SnapshotCallback {
+    /**
+     * Called on the render thread with a copy of the screenshot, null if there is no
+     * screenshot yet. A crop not placed yet is left out. The callee owns the copy and
+     * must not change it.
+     *
+     * @param baseImage the image the actions are drawn on, null for a blank sketchpad,
+     *                  it is never changed or recycled and may be read on any thread
+     * @param actions a copy of the shown actions, which do not change any more
+     */
+    public void onSnapshotTaken(Bitmap snapshot, Bitmap baseImage, List<Action> actions);
+  }
+
   private boolean mIsCropped = false;
   private boolean isTouchingCroppedArea = false;
   private boolean isCroppedAreaMovingDone = false;
+  /**
+   * The area cut out of the screenshot by the crop, its bounds are in mCropBounds.
+   * The screenshot has a hole filled with background color there until the crop ends.
+   */
   private Bitmap croppedBitmap;
-  private Bitmap leftBitmap;
+  private final Rect mCropBounds = new Rect();
+
+  /**
+   * While dragging the selection, only the union of its last and new screen area
+   * is redrawn. The dash path around it is offset into one reused path.
+   */
+  private final RectF mCropPathBounds = new RectF();
+  private final Rect mCropDragRect = new Rect();
+  private final Rect mTmpCropDragRect = new Rect();
+  private final Rect mCropDirtyRect = new Rect();
+  private final RectF mTmpCropDragBounds = new RectF();
+  private final Path mCropDragPath = new Path();
+
+  /**
+   * The area inside the crop path where it was closed, to tell if the selection is touched.
+   */
+  private final Region mCropRegion = new Region();
+  private final Region mCropClipRegion = new Region();
+
+  private final Rect mTmpCropRect = new Rect();
+
+  /**
+   * Full-screen bitmaps of crops are taken from and handed back to this pool.
+   * Only touched on the render thread.
+   */
+  private BitmapPool mBitmapPool;
   private float cropMoveDeltaX = 0f;
   private float cropMoveDeltaY = 0f;
   private float lastCropMoveDeltaX = 0f;
@@ -89,6 +233,172 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
 //  private float lastLineToY = -1F;
   private Paint mPaintingPaint;
 
+  /**
+   * A translucent stroke in progress is drawn opaque into a layer, and the layer is blended
+   * over the screenshot as it was before the stroke, so that its batches do not blend twice
+   * where they join. Only touched on the render thread.
+   */
+  private Bitmap mStrokeLayer;
+  private Canvas mStrokeLayerCanvas;
+  private Bitmap mStrokeUnderlay;
+  private final Paint mStrokeLayerPaint = new Paint();
+  private final Rect mStrokeLayerRect = new Rect();
+
+  /**
+   * Presents transient frames while the viewport moves, without filtering.
+   */
+  private final Paint mFastPaintingPaint = new Paint();
+
+  /**
+   * Whether the frame on the surface is a transient one, to be presented again in full
+   * quality once the viewport settles.
+   * Only touched on the render thread.
+   */
+  private boolean mLowQualityPresented = false;
+
+  /**
+   * Whether there is a surface now. The screenshot outlives it, see {@link #trimMemory(int)}.
+   * Only touched on the UI thread.
+   */
+  private boolean mHasSurface = false;
+
+  /**
+   * Whether a render thread is started for the next surface.
+   */
+  private boolean mRenderThreadEnabled = true;
+
+  /**
+   * The running render thread, null when the surface is gone or render thread mode is off.
+   * Touched on the UI thread only, but read on the render thread as well.
+   */
+  private volatile SketchpadRenderThread mRenderThread;
+
+  /**
+   * Area of the screenshot changed since last present, in screenshot coordinates.
+   * Only touched on the render thread.
+   */
+  private final RectF mDirtyRect = new RectF();
+  private final RectF mTmpDirtyRect = new RectF();
+  private final RectF mTmpAffectedRect = new RectF();
+  private final Rect mSurfaceDirtyRect = new Rect();
+  private boolean mFullRedrawRequested = true;
+
+  /**
+   * Downscaled copies of the screenshot to present a zoomed-out viewport from.
+   * Only touched on the render thread.
+   */
+  private final MipChain mMipChain = new MipChain();
+
+  /**
+   * Part of the presented bitmap that is on the surface, and where it goes.
+   * Only touched on the render thread.
+   */
+  private final RectF mVisibleRect = new RectF();
+  private final Rect mVisibleSrcRect = new Rect();
+  private final RectF mVisibleDstRect = new RectF();
+  private final Rect mSurfaceClipRect = new Rect();
+
+  /**
+   * The viewport drawn from the actions at its own scale, presented instead of the
+   * magnified screenshot while nothing changed since it was requested.
+   * Only touched on the render thread.
+   */
+  private boolean mSharpViewportEnabled = true;
+  private final ViewportRasterizer mViewportRasterizer = new ViewportRasterizer();
+  private Bitmap mSharpViewport;
+  private float mSharpViewportScale;
+  private float mSharpViewportLeft;
+  private float mSharpViewportTop;
+  private int mSharpViewportGeneration;
+  /**
+   * Changed every time the screenshot is invalidated.
+   */
+  private int mContentGeneration = 0;
+  private final Rect mSharpSrcRect = new Rect();
+
+  private final Runnable mRasterizeViewportRunnable = new Runnable() {
+    @Override
+    public void run() {
+      rasterizeViewport();
+    }
+  };
+
+  /**
+   * Provisional tail of the in-progress stroke, in screenshot coordinates.
+   * Only drawn to the surface, never to the screenshot or the path of curAction.
+   * Only touched on the render thread.
+   */
+  private boolean mMotionPredictionEnabled = true;
+  private final StrokePredictor mStrokePredictor = new StrokePredictor();
+  private final float[] mPredictedPoints = new float[2 * StrokePredictor.getMaxPredictedPoints()];
+  private final Path mPredictedPath = new Path();
+  private final RectF mPredictedBounds = new RectF();
+  private boolean mHasPrediction = false;
+
+  /**
+   * Set by the gesture listener on the UI thread, the whole surface is stale then.
+   */
+  private volatile boolean mViewportChanged = false;
+
+  /**
+   * The viewport taken from the gesture listener at the start of each frame, touch event
+   * or rasterization, so that all of it sees the same one.
+   * Only touched on the render thread.
+   */
+  private SketchpadGestureListener.Viewport mViewport;
+  private final RectF mViewportDstRect = new RectF();
+
+  /**
+   * Copies of touch events recorded on the UI thread, waiting for the render thread.
+   * Guarded by itself.
+   */
+  private final ArrayDeque<MotionEvent> mPendingTouchEvents = new ArrayDeque<MotionEvent>();
+
+  /**
+   * The batch new touch events join, null once other work is queued after it, so that
+   * the events after that work wait for it in a new batch. Guarded by mPendingTouchEvents.
+   */
+  private TouchEventBatch mOpenTouchEventBatch;
+
+  /**
+   * Handles the touch events recorded in a row between two other pieces of work, so that
+   * input and work queued by undo, redo, crop mode and such run in the order they came.
+   */
+  private final class TouchEventBatch implements Runnable {
+    /**
+     * Events of this batch not handled yet, at the head of mPendingTouchEvents.
+     * Guarded by mPendingTouchEvents.
+     */
+    int mCount;
+
+    @Override
+    public void run() {
+      while (true) {
+        MotionEvent event;
+        synchronized (mPendingTouchEvents) {
+          if (mCount == 0) {
+            if (mOpenTouchEventBatch == this) {
+              // Events from now on are not covered by this run any more.
+              mOpenTouchEventBatch = null;
+            }
+            return;
+          }
+          mCount--;
+          event = mPendingTouchEvents.poll();
+        }
+        handleSingleTouchEvent(event);
+        event.recycle();
+      }
+    }
+  }
+
+  private final Runnable mPerformClickRunnable = new Runnable() {
+    @Override
+    public void run() {
+      performClick();
+    }
+  };
+
   public Sketchpad(Context context) {
     super(context);
     init(context);
@@ -112,15 +422,17 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
     curColor = Action.DEFAULT_COLOR;
 
     setDrawingCacheEnabled(true);
+    mAutosaveJournal = new AutosaveJournal(new File(context.getFilesDir(), AUTOSAVE_DIRECTORY));
+    mCacheDirectory = context.getCacheDir();
 
-    mPaintingPaint = new Paint();
-    mPaintingPaint.setFilterBitmap(true);
-    mPaintingPaint.setFlags(Paint.ANTI_ALIAS_FLAG);
+    // setFlags() would replace the filter flag, so both are given at once.
+    mPaintingPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
     DisplayMetrics displaymetrics = context.getResources().getDisplayMetrics();
     final int PAINTING_WIDTH = displaymetrics.widthPixels;
     final int PAINTING_HEIGHT = displaymetrics.heightPixels;
     mForceWidth = PAINTING_WIDTH;
     mForceHeight = PAINTING_HEIGHT;
+    mBitmapPool = new BitmapPool((long) MAX_POOLED_SCREENS * mForceWidth * mForceHeight * 4);
     mGestureListener = new SketchpadGestureListener(context, mForceWidth, mForceHeight, this);
     mGestureListener.setViewCenter((float)mForceWidth / 2.0F, (float)mForceHeight / 2.0F);
     mScaleDetector = new ScaleGestureDetector(context, mGestureListener);
@@ -128,108 +440,778 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
 
   @Override
   public void surfaceCreated(SurfaceHolder holder) {
+    mHasSurface = true;
     if (shownActions == null){
       shownActions = new ArrayList<Action>();
     }
     if (removedActions == null) {
       removedActions = new ArrayList<Action>();
     }
+    if (mRenderThreadEnabled && mRenderThread == null) {
+      SketchpadRenderThread renderThread = new SketchpadRenderThread(this);
+      renderThread.start();
+      mRenderThread = renderThread;
+    }
   }
 
   @Override
   public void surfaceChanged(SurfaceHolder holder, int format, int width,
                              int height) {
-    tryLoadingSavedPaintingBitmap();
-    initScreenshotAndCanvas();
-    onViewRectChanged();
+    queueEvent(new Runnable() {
+      @Override
+      public void run() {
+        if (!mAutosaveStarted) {
+          startAutosave();
+        } else {
+          tryLoadingSavedPaintingBitmap();
+        }
+        if (getScreenshot() != null) {
+          // Kept from the last surface, nothing to decode or replay.
+          invalidateScreenshot();
+          return;
+        }
 
-    if (haveActionsToShow()) {
-      performShownActions();
+        initScreenshotAndCanvas();
+        if (mHistoryMode == HistoryMode.PIXEL_PATCH) {
+          mPatchHistory.ensureCommittedBitmap(getScreenshot());
+        }
+        invalidateScreenshot();
+
+        if (!shownActions.isEmpty()) {
+          performShownActions();
+        }
+      }
+    });
+  }
+
+  /**
+   * Turn the render thread mode on or off. Takes effect when the surface is created next time.
+   */
+  public void setRenderThreadEnabled(boolean enabled) {
+    mRenderThreadEnabled = enabled;
+  }
+
+  public boolean isRenderThreadEnabled() {
+    return mRenderThreadEnabled;
+  }
+
+  /**
+   * Run the given work on the render thread if there is one, otherwise run it right now.
+   */
+  private void queueEvent(Runnable r) {
+    SketchpadRenderThread renderThread = mRenderThread;
+    if (renderThread != null) {
+      synchronized (mPendingTouchEvents) {
+        // Touch events from now on go after this work.
+        mOpenTouchEventBatch = null;
+      }
+      renderThread.queueEvent(r);
+    } else {
+      r.run();
+    }
+  }
+
+  /**
+   * Run the given work on the render thread after the delay, on the UI thread without one.
+   */
+  private void queueEventDelayed(Runnable r, long delayMillis) {
+    SketchpadRenderThread renderThread = mRenderThread;
+    if (renderThread != null) {
+      renderThread.queueEventDelayed(r, delayMillis);
+    } else {
+      postDelayed(r, delayMillis);
+    }
+  }
+
+  private void removeQueuedEvent(Runnable r) {
+    SketchpadRenderThread renderThread = mRenderThread;
+    if (renderThread != null) {
+      renderThread.removeEvent(r);
+    } else {
+      removeCallbacks(r);
+    }
+  }
+
+  /**
+   * Present the screenshot on the next vsync, or right now without a render thread.
+   */
+  private void requestRender() {
+    SketchpadRenderThread renderThread = mRenderThread;
+    if (renderThread != null) {
+      renderThread.requestRender();
+    } else {
+      onDrawFrame();
+    }
+  }
+
+  /**
+   * Present the whole screenshot on next frame.
+   */
+  private void invalidateScreenshot() {
+    mFullRedrawRequested = true;
+    mMipChain.invalidate();
+    onContentChanged();
+    requestRender();
+  }
+
+  /**
+   * Present the given area of the screenshot on next frame.
+   *
+   * @param dirty changed area in screenshot coordinates
+   */
+  private void invalidateScreenshot(RectF dirty) {
+    mDirtyRect.union(dirty);
+    mMipChain.invalidate(dirty);
+    onContentChanged();
+    requestRender();
+  }
+
+  /**
+   * Present the given area on next frame, for overlays drawn over the screenshot which
+   * is itself unchanged, so the mip levels and the sharp viewport stay valid.
+   *
+   * @param dirty area to present in screenshot coordinates
+   */
+  private void invalidateSurface(RectF dirty) {
+    mDirtyRect.union(dirty);
+    requestRender();
+  }
+
+  /**
+   * The sharp viewport is stale once the screenshot changes, draw it again when idle.
+   */
+  private void onContentChanged() {
+    mContentGeneration++;
+    scheduleSharpViewport();
+  }
+
+  private void scheduleSharpViewport() {
+    removeQueuedEvent(mRasterizeViewportRunnable);
+    if (mSharpViewportEnabled
+        && mGestureListener.getViewport().getScale() >= SHARP_VIEWPORT_MIN_SCALE) {
+      queueEventDelayed(mRasterizeViewportRunnable, SHARP_VIEWPORT_IDLE_MILLIS);
+    }
+  }
+
+  /**
+   * Draw the actions in the viewport again at its scale, in background.
+   * <p>
+   * Crops move pixels rather than draw, so only the actions after the last crop are
+   * drawn, over a keyframe taken after it, or over the base image without any crop.
+   * Otherwise the magnified screenshot stays.
+   */
+  private void rasterizeViewport() {
+    Bitmap screenshot = getScreenshot();
+    mViewport = mGestureListener.getViewport();
+    final float scale = mViewport.getScale();
+    if (!mSharpViewportEnabled || screenshot == null || mIsCropMode
+        || scale < SHARP_VIEWPORT_MIN_SCALE || getWidth() <= 0 || getHeight() <= 0) {
+      return;
+    }
+
+    int lastCropIndex = -1;
+    for (int i = shownActions.size() - 1; i >= 0; i--) {
+      if (shownActions.get(i) instanceof CropAction) {
+        lastCropIndex = i;
+        break;
+      }
+    }
+    Bitmap underlaySource;
+    int start;
+    ReplayCheckpoints.Checkpoint checkpoint = mCheckpoints.findNearest(shownActions.size());
+    if (checkpoint != null && checkpoint.actionCount > lastCropIndex) {
+      underlaySource = checkpoint.bitmap;
+      start = checkpoint.actionCount;
+    } else if (lastCropIndex < 0) {
+      underlaySource = savedPaintingBitmap;
+      start = 0;
+    } else {
+      return;
+    }
+
+    mVisibleRect.set(mViewport.inverseX(0), mViewport.inverseY(0),
+        mViewport.inverseX(getWidth()), mViewport.inverseY(getHeight()));
+    if (!mVisibleRect.intersect(0, 0, screenshot.getWidth(), screenshot.getHeight())) {
+      return;
+    }
+
+    // Only the visible part of the underlay is copied, the source may be recycled any time.
+    Bitmap underlay = null;
+    if (underlaySource != null && !underlaySource.isRecycled()) {
+      mVisibleRect.roundOut(mSharpSrcRect);
+      if (mSharpSrcRect.intersect(0, 0, underlaySource.getWidth(), underlaySource.getHeight())) {
+        underlay = Bitmap.createBitmap(underlaySource, mSharpSrcRect.left, mSharpSrcRect.top,
+            mSharpSrcRect.width(), mSharpSrcRect.height());
+        if (underlay == underlaySource) {
+          underlay = underlaySource.copy(Bitmap.Config.ARGB_8888, false);
+        }
+      }
+    }
+    List<Action> actions = new ArrayList<Action>();
+    for (int i = start; i < shownActions.size(); i++) {
+      Action action = shownActions.get(i);
+      action.getBounds(mTmpAffectedRect);
+      if (RectF.intersects(mTmpAffectedRect, mVisibleRect)) {
+        // Made here, so that the background thread only reads it.
+        action.getStrokePaint();
+        actions.add(action);
+      }
     }
+
+    final int generation = mContentGeneration;
+    final float left = mViewport.getDstLeft();
+    final float top = mViewport.getDstTop();
+    // The result goes back to the thread that asked for it, or is dropped once it is gone.
+    final SketchpadRenderThread renderThread = mRenderThread;
+    mViewportRasterizer.rasterize(underlay, mSharpSrcRect.left, mSharpSrcRect.top,
+        DEFAULT_SKETCHPAD_BG_COLOR, actions, getWidth(), getHeight(), left, top, scale,
+        new ViewportRasterizer.Callback() {
+          @Override
+          public void onRasterized(final Bitmap viewport) {
+            Runnable showViewport = new Runnable() {
+              @Override
+              public void run() {
+                if (mRenderThread != renderThread || generation != mContentGeneration
+                    || getScreenshot() == null) {
+                  viewport.recycle();
+                  return;
+                }
+                releaseSharpViewport();
+                mSharpViewport = viewport;
+                mSharpViewportScale = scale;
+                mSharpViewportLeft = left;
+                mSharpViewportTop = top;
+                mSharpViewportGeneration = generation;
+                mFullRedrawRequested = true;
+                requestRender();
+              }
+            };
+            boolean queued = renderThread != null
+                ? renderThread.queueEvent(showViewport) : post(showViewport);
+            if (!queued) {
+              viewport.recycle();
+            }
+          }
+        });
+  }
+
+  /**
+   * @return true if the sharp viewport is of the screenshot and the viewport as they are now
+   */
+  private boolean isSharpViewportValid() {
+    return mSharpViewport != null
+        && mSharpViewportGeneration == mContentGeneration
+        && mSharpViewportScale == mViewport.getScale()
+        && mSharpViewportLeft == mViewport.getDstLeft()
+        && mSharpViewportTop == mViewport.getDstTop();
+  }
+
+  private void releaseSharpViewport() {
+    if (mSharpViewport != null) {
+      mSharpViewport.recycle();
+      mSharpViewport = null;
+    }
+  }
+
+  /**
+   * Whether a zoomed-in viewport is drawn again from the actions to look sharp,
+   * instead of only magnifying the screenshot.
+   */
+  public void setSharpViewportEnabled(final boolean enabled) {
+    queueEvent(new Runnable() {
+      @Override
+      public void run() {
+        mSharpViewportEnabled = enabled;
+        if (enabled) {
+          scheduleSharpViewport();
+        } else {
+          removeQueuedEvent(mRasterizeViewportRunnable);
+          mViewportRasterizer.cancel();
+          releaseSharpViewport();
+          invalidateScreenshot();
+        }
+      }
+    });
+  }
+
+  private void runOnUiThread(Runnable r) {
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      r.run();
+    } else {
+      post(r);
+    }
+  }
+
+  /**
+   * Change the base image, cutouts kept by crops on the old one are stale from now on.
+   */
+  private void setSavedPaintingBitmap(Bitmap bitmap) {
+    savedPaintingBitmap = bitmap;
+    mBaseGeneration++;
   }
 
   private void tryLoadingSavedPaintingBitmap() {
+    if (mPaintingRecovered) {
+      // The base image came back with the autosave.
+      return;
+    }
+    if (savedPaintingBitmap != null && !savedPaintingBitmap.isRecycled()) {
+      // Kept from the last surface.
+      return;
+    }
     if (!StringUtil.isNullOrEmptyOrWhitespace(savedFilePath)) {
-      savedPaintingBitmap = BitmapFactory.decodeFile(savedFilePath);
+      if (tryLoadingSavedDocument()) {
+        return;
+      }
+      File imageFile = new File(savedFilePath);
+      setSavedPaintingBitmap(RawBitmapCache.read(mCacheDirectory, imageFile));
+      if (savedPaintingBitmap != null) {
+        return;
+      }
+
+      // No cache of the image as it is now, decode it and keep the pixels for next time.
+      setSavedPaintingBitmap(BitmapFactory.decodeFile(savedFilePath));
+      if (savedPaintingBitmap != null) {
+        try {
+          RawBitmapCache.write(mCacheDirectory, imageFile, savedPaintingBitmap);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Load the document saved along with the painting, if any, so that its actions
+   * can be undone again. The painting is shown from its raw cache when there is one,
+   * the actions are only replayed for undo.
+   *
+   * @return true if the document is loaded, now or before
+   */
+  private boolean tryLoadingSavedDocument() {
+    File documentFile = SketchDocument.documentFileFor(new File(savedFilePath));
+    String documentPath = documentFile.getPath();
+    if (documentPath.equals(mLoadedDocumentPath)) {
+      return true;
+    }
+    if (!documentFile.exists() || !shownActions.isEmpty()) {
+      return false;
+    }
+
+    SketchDocument document;
+    try {
+      document = SketchDocument.read(documentFile);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    }
+    setSavedPaintingBitmap(document.getBaseImage());
+    shownActions.addAll(document.getActions());
+    updateHistoryCounts();
+    mLoadedDocumentPath = documentPath;
+
+    if (!shownActions.isEmpty()) {
+      Bitmap flattened = RawBitmapCache.read(mCacheDirectory, new File(savedFilePath));
+      if (flattened != null) {
+        mCheckpoints.add(shownActions.size(), flattened);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Give back memory as asked by {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+   * <p>
+   * The screenshot and the base image are kept while the surface is gone, so that coming
+   * back only presents them again. Replay keyframes go first when memory runs low, and the
+   * screenshot with everything derived from it goes once in background. The base image is
+   * always kept, as it can not be brought back from the autosave or the saved document.
+   */
+  public void trimMemory(int level) {
+    final boolean releaseScreenshot = !mHasSurface
+        && level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND;
+    if (!releaseScreenshot && level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      return;
+    }
+    queueEvent(new Runnable() {
+      @Override
+      public void run() {
+        mCheckpoints.clear();
+        mMipChain.release();
+        mViewportRasterizer.cancel();
+        releaseSharpViewport();
+        releaseAllCutouts();
+        if (releaseScreenshot && !mIsCropMode) {
+          releaseScreenshot();
+        }
+        // Last, so that the bitmaps released above are not kept.
+        mBitmapPool.clear();
+      }
+    });
+  }
+
+  /**
+   * Drop the screenshot, it is replayed from the base image when the surface comes back.
+   */
+  private void releaseScreenshot() {
+    releaseStrokeLayer();
+    mPatchHistory.release();
+    Bitmap screenshot = getScreenshot();
+    if (screenshot != null) {
+      screenshot.recycle();
+      setScreenshot(null);
+      screenshotCanvas = null;
+    }
+  }
+
+  /**
+   * Bring back the painting from the autosave left by a crash if there is one,
+   * otherwise load the saved painting. Then keep autosaving from there.
+   */
+  private void startAutosave() {
+    mAutosaveStarted = true;
+    if (mAutosaveJournal.exists()) {
+      try {
+        setSavedPaintingBitmap(mAutosaveJournal.recover(shownActions, removedActions));
+        mPaintingRecovered = true;
+        updateHistoryCounts();
+        return;
+      } catch (IOException e) {
+        e.printStackTrace();
+        shownActions.clear();
+        removedActions.clear();
+        updateHistoryCounts();
+      }
+    }
+
+    tryLoadingSavedPaintingBitmap();
+    mAutosaveJournal.start(savedPaintingBitmap, shownActions, removedActions);
+  }
+
+  /**
+   * Commit the records appended to the autosave once the render thread is idle for a while,
+   * or fold a long journal into a new snapshot. The disk work is all in background.
+   */
+  private void onAutosaveAppended() {
+    if (mAutosaveJournal.needsCompaction()) {
+      mAutosaveJournal.start(savedPaintingBitmap, shownActions, removedActions);
+      return;
     }
+    removeQueuedEvent(mSyncAutosaveRunnable);
+    queueEventDelayed(mSyncAutosaveRunnable, AUTOSAVE_IDLE_MILLIS);
+  }
+
+  /**
+   * Delete the autosave, when the painting is left on purpose, saved or not.
+   */
+  public void discardAutosave() {
+    queueEvent(new Runnable() {
+      @Override
+      public void run() {
+        mAutosaveJournal.delete();
+      }
+    });
   }
 
+  /**
+   * Take a copy of the screenshot with all actions queued so far performed, e.g. to export
+   * it while drawing goes on, along with what it is drawn from to save it as a
+   * {@link SketchDocument}.
+   */
+  public void takeSnapshot(final SnapshotCallback callback) {
+    queueEvent(new Runnable() {
+      @Override
+      public void run() {
+        Bitmap screenshot = getScreenshot();
+        Bitmap snapshot = null;
+        if (screenshot != null && !screenshot.isRecycled()) {
+          boolean cropPending = isCropDone() && croppedBitmap != null;
+          snapshot = screenshot.copy(Bitmap.Config.ARGB_8888, cropPending);
+          if (cropPending && snapshot != null) {
+            // The crop is not an action yet, export the painting as if it was given up.
+            new Canvas(snapshot).drawBitmap(croppedBitmap, mCropBounds.left, mCropBounds.top,
+                null);
+          }
+        }
+        callback.onSnapshotTaken(snapshot, savedPaintingBitmap,
+            new ArrayList<Action>(shownActions));
+      }
+    });
+  }
+
+  /**
+   * Safe to call from any thread, but touch events still queued are not counted yet.
+   */
   public boolean haveActionsToShow() {
-    return shownActions != null && shownActions.size() > 0;
+    return mShownActionCount > 0;
   }
 
   public boolean haveActionsToRedo() {
-    return removedActions != null && removedActions.size() > 0;
+    return mRemovedActionCount > 0;
+  }
+
+  /**
+   * Publish the sizes of the history, call it on the render thread after changing it.
+   */
+  private void updateHistoryCounts() {
+    mShownActionCount = shownActions.size();
+    mRemovedActionCount = removedActions.size();
+  }
+
+  /**
+   * @return true if there are touch events queued for the render thread, e.g. the end of
+   * a stroke not in the history yet
+   */
+  private boolean hasPendingTouchEvents() {
+    synchronized (mPendingTouchEvents) {
+      return !mPendingTouchEvents.isEmpty();
+    }
   }
 
   private void performShownActions() {
     /*
-     *  Perform all actions to the screenshot.
+     *  Perform all actions to the screenshot,
+     *  starting from the nearest keyframe if there is one.
      */
-    screenshotCanvas.drawColor(DEFAULT_SKETCHPAD_BG_COLOR);
-    if (savedPaintingBitmap != null) {
-      screenshotCanvas.drawBitmap(savedPaintingBitmap, 0, 0, null);
+    int start = 0;
+    ReplayCheckpoints.Checkpoint checkpoint = mCheckpoints.findNearest(shownActions.size());
+    if (checkpoint != null) {
+      screenshotCanvas.drawBitmap(checkpoint.bitmap, 0, 0, null);
+      start = checkpoint.actionCount;
+    } else {
+      screenshotCanvas.drawColor(DEFAULT_SKETCHPAD_BG_COLOR);
+      if (savedPaintingBitmap != null) {
+        screenshotCanvas.drawBitmap(savedPaintingBitmap, 0, 0, null);
+      }
     }
 
+    for (int i = start; i < shownActions.size(); i++) {
+      performAction(shownActions.get(i), i);
+    }
+    if (mHistoryMode == HistoryMode.PIXEL_PATCH) {
+      mPatchHistory.sync(getScreenshot());
+    }
+    mCheckpoints.onActionsShown(shownActions, getScreenshot());
+
+    invalidateScreenshot();
+  }
+
+  /**
+   * @param index index of the action in shownActions
+   */
+  private void performAction(Action action, int index) {
     // Item of shownActions is either Action or CropAction.
-    for (Action action : shownActions) {
-      if (action instanceof CropAction){
-        performAutoCrop(screenshotCanvas, (CropAction) action);
-      }else {
-        action.draw(screenshotCanvas);
+    if (action instanceof CropAction){
+      performAutoCrop(screenshotCanvas, (CropAction) action, index);
+    }else {
+      action.draw(screenshotCanvas);
+    }
+  }
+
+  /**
+   * Add a newly drawn action to the end of shownActions.
+   * The screenshot shall already have it performed.
+   */
+  private void addShownAction(Action action) {
+    // Clear the removed action list every time new action made.
+    for (Action removedAction : removedActions) {
+      if (removedAction instanceof CropAction) {
+        releaseCutout((CropAction) removedAction);
       }
     }
+    removedActions.clear();
+    mCheckpoints.discardAfter(shownActions.size());
+    shownActions.add(action);
+    if (mHistoryMode == HistoryMode.PIXEL_PATCH) {
+      mPatchHistory.clearRedo();
+      getAffectedBounds(action, mTmpAffectedRect);
+      mPatchHistory.record(getScreenshot(), mTmpAffectedRect, shownActions.size());
+    }
+    // Kept in both modes, pixel patches fall back to replay once their budget is used up.
+    mCheckpoints.onActionsShown(shownActions, getScreenshot());
+    updateHistoryCounts();
+    mAutosaveJournal.appendAction(action);
+    onAutosaveAppended();
+  }
 
-    onViewRectChanged();
+  /**
+   * Get the area of the screenshot changed by performing the action.
+   */
+  private void getAffectedBounds(Action action, RectF outBounds) {
+    action.getBounds(outBounds);
+    if (action instanceof CropAction) {
+      // Both the hole and the pasted area.
+      CropAction cropAction = (CropAction) action;
+      float left = outBounds.left;
+      float top = outBounds.top;
+      float right = outBounds.right;
+      float bottom = outBounds.bottom;
+      outBounds.offset(cropAction.getMoveDatlaX(), cropAction.getMoveDatlaY());
+      outBounds.union(left, top, right, bottom);
+    }
   }
 
-  private void performAutoCrop(Canvas backupCanvas, CropAction cropAction){
-    Bitmap bitmapBeforeCrop = getScreenshot();
+  public HistoryMode getHistoryMode() {
+    return mHistoryMode;
+  }
 
+  /**
+   * Choose how undo and redo bring back the screenshot.
+   * The history recorded so far is kept but only the new mode is maintained from now on.
+   */
+  public void setHistoryMode(final HistoryMode historyMode) {
+    queueEvent(new Runnable() {
+      @Override
+      public void run() {
+        if (mHistoryMode == historyMode) {
+          return;
+        }
+        mHistoryMode = historyMode;
+        if (historyMode == HistoryMode.PIXEL_PATCH) {
+          // Keyframes are still kept, undo past the patches replays from them.
+          if (getScreenshot() != null) {
+            mPatchHistory.reset(getScreenshot());
+          }
+        } else {
+          mPatchHistory.release();
+        }
+      }
+    });
+  }
+
+  private void performAutoCrop(Canvas backupCanvas, CropAction cropAction, int index){
+    if (cropAction.hasCutoutFor(index, mBaseGeneration)) {
+      // Same content underneath as last time, no need to cut it out again.
+      Rect bounds = cropAction.getCutoutBounds();
+      mCutoutMaskPaint.setColor(DEFAULT_SKETCHPAD_BG_COLOR);
+      backupCanvas.drawBitmap(cropAction.getCutoutMask(), bounds.left, bounds.top,
+          mCutoutMaskPaint);
+      backupCanvas.drawBitmap(cropAction.getCutoutPixels(),
+          bounds.left + cropAction.getMoveDatlaX(), bounds.top + cropAction.getMoveDatlaY(), null);
+      mCachedCutouts.remove(cropAction);
+      mCachedCutouts.addLast(cropAction);
+      return;
+    }
+
+    Bitmap croppedPart = cutOutCropArea(backupCanvas, cropAction, mTmpCropRect);
+    if (croppedPart != null) {
+      backupCanvas.drawBitmap(croppedPart, mTmpCropRect.left + cropAction.getMoveDatlaX(),
+          mTmpCropRect.top + cropAction.getMoveDatlaY(), null);
+      cacheCutout(cropAction, croppedPart, mTmpCropRect, index);
+    }
+  }
+
+  /**
+   * Let the crop action keep its cutout for replay, within the memory budget.
+   */
+  private void cacheCutout(CropAction cropAction, Bitmap pixels, Rect bounds, int index) {
+    releaseCutout(cropAction);
+    cropAction.setCutout(pixels, bounds, index, mBaseGeneration);
+    mCachedCutouts.addLast(cropAction);
+    mCachedCutoutBytes += cropAction.getCutoutByteCount();
+    while (mCachedCutoutBytes > mMaxCachedCutoutBytes) {
+      CropAction eldest = mCachedCutouts.pollFirst();
+      mCachedCutoutBytes -= eldest.getCutoutByteCount();
+      eldest.releaseCutout(mBitmapPool);
+    }
+  }
+
+  private void releaseCutout(CropAction cropAction) {
+    if (mCachedCutouts.remove(cropAction)) {
+      mCachedCutoutBytes -= cropAction.getCutoutByteCount();
+    }
+    cropAction.releaseCutout(mBitmapPool);
+  }
+
+  private void releaseAllCutouts() {
+    for (CropAction cropAction : mCachedCutouts) {
+      cropAction.releaseCutout(mBitmapPool);
+    }
+    mCachedCutouts.clear();
+    mCachedCutoutBytes = 0;
+  }
+
+  /**
+   * Cut the area inside the closed crop path out of the screenshot, leaving the
+   * background color in its place.
+   * <p>
+   * Only the bounds of the path are copied, so the cost goes with the size of the
+   * selection rather than the screen.
+   *
+   * @param canvas canvas of the screenshot
+   * @param outBounds the bounds of the area cut out
+   * @return the pixels cut out, at (0, 0) and transparent outside the path, null if
+   * nothing is inside. Hand it back to mBitmapPool when done.
+   */
+  private Bitmap cutOutCropArea(Canvas canvas, CropAction cropAction, Rect outBounds) {
+    Bitmap screenshot = getScreenshot();
     RectF boundsOfCropPath = new RectF();
     cropAction.getCropPath().computeBounds(boundsOfCropPath, true);
-    float left = boundsOfCropPath.left;
-    float right = boundsOfCropPath.right;
-    float top = boundsOfCropPath.top;
-    float bottom = boundsOfCropPath.bottom;
+    boundsOfCropPath.roundOut(outBounds);
+    if (screenshot == null || screenshot.isRecycled()
+        || !outBounds.intersect(0, 0, screenshot.getWidth(), screenshot.getHeight())) {
+      outBounds.setEmpty();
+      return null;
+    }
 
     // Get the cropped bitmap we WANT !!
-    Bitmap croppedRect = Bitmap.createBitmap(
-        bitmapBeforeCrop, (int) left, (int) top,
-        (int) Math.abs(left - right),
-        (int) Math.abs(top - bottom));
-    croppedBitmap = createEmptyBitmap();
-    Canvas painter1 = new Canvas(croppedBitmap);
-    if (croppedRect != null && !croppedRect.isRecycled()) {
-      painter1.drawBitmap(croppedRect, left, top, null);
-      croppedRect.recycle();
-    }
-    // eraser the area between the path and its Rect.
-    painter1.clipRect(boundsOfCropPath);
-    painter1.clipPath(cropAction.getCropPath(), Region.Op.DIFFERENCE);
+    // Sizes are rounded up so that the pool has a better chance to reuse bitmaps.
+    Bitmap croppedPart = mBitmapPool.acquire(alignCropBufferSize(outBounds.width()),
+        alignCropBufferSize(outBounds.height()), Bitmap.Config.ARGB_8888);
+    Canvas painter = new Canvas(croppedPart);
+    painter.translate(-outBounds.left, -outBounds.top);
+    painter.drawBitmap(screenshot, outBounds, outBounds, null);
+    // eraser the area out of the path.
+    painter.clipPath(cropAction.getCropPath(), Region.Op.DIFFERENCE);
     //Mode.CLEAR makes the unwanted area transparent.
-    painter1.drawColor(0, Mode.CLEAR);
-    // by now, croppedBitmap is the result of the irregular crop, for later use.
+    painter.drawColor(0, Mode.CLEAR);
+
+    // eraser the area inside the closed path, right on the screenshot.
+    canvas.save();
+    canvas.clipPath(cropAction.getCropPath());
+    canvas.drawColor(DEFAULT_SKETCHPAD_BG_COLOR);
+    canvas.restore();
+    return croppedPart;
+  }
+
+  private static int alignCropBufferSize(int size) {
+    return (size + CROP_BUFFER_ALIGNMENT - 1) / CROP_BUFFER_ALIGNMENT * CROP_BUFFER_ALIGNMENT;
+  }
 
-    // Generate the bitmap after cropping
-    leftBitmap = createEmptyBitmap();
-    Canvas painter2 = new Canvas(leftBitmap);
-    if (bitmapBeforeCrop != null && !bitmapBeforeCrop.isRecycled()){
-      painter2.drawBitmap(bitmapBeforeCrop, 0, 0, null);
+  /**
+   * Put the cut out area back where it was, when the crop is given up.
+   */
+  private void restoreCropArea() {
+    if (croppedBitmap != null && screenshotCanvas != null) {
+      screenshotCanvas.drawBitmap(croppedBitmap, mCropBounds.left, mCropBounds.top, null);
+      mTmpDirtyRect.set(mCropBounds);
+      mMipChain.invalidate(mTmpDirtyRect);
     }
-    // eraser the area inside the closed path.
-    painter2.clipRect(boundsOfCropPath);
-    painter2.clipPath(cropAction.getCropPath(), Region.Op.INTERSECT);
-    painter2.drawColor(DEFAULT_SKETCHPAD_BG_COLOR);
-    // by now, leftBitmap is what left after the irregular crop, for later use.
+  }
 
-    backupCanvas.drawBitmap(leftBitmap, 0, 0, null);
-    backupCanvas.drawBitmap(croppedBitmap, cropAction.getMoveDatlaX(),
-        cropAction.getMoveDatlaY(), null);
+  /**
+   * Give up the crop waiting to be placed, if any, so that the screenshot has no hole
+   * before the history is touched.
+   */
+  private void giveUpCrop() {
+    if (isCropDone()) {
+      restoreCropArea();
+      exitCropMode();
+      invalidateScreenshot();
+    }
   }
 
   @Override
   public void surfaceDestroyed(SurfaceHolder holder) {
+    mHasSurface = false;
+    // The process may well be killed in background, commit what is not on disk yet.
+    queueEvent(mSyncAutosaveRunnable);
+    SketchpadRenderThread renderThread = mRenderThread;
+    if (renderThread != null) {
+      // The surface must not be touched after this returns, so wait for the render thread.
+      renderThread.quitAndWait();
+      mRenderThread = null;
+    }
   }
 
   @Override
@@ -259,6 +1241,8 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
 //          mGestureListener.onScaleBegin(f, f1);
 //        }
 //      }
+      // Before the scale detector, which ends the scaling on the last pointer up.
+      mGestureListener.onTwoFingerTouchEvent(event);
       mScaleDetector.onTouchEvent(event);
       return true;
     }
@@ -267,88 +1251,97 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
      *  Handle single-finger-events here.
      */
     else if (event.getPointerCount() == 1) {
-      float touchX = event.getRawX();
-      float touchY = event.getRawY();
+      SketchpadRenderThread renderThread = mRenderThread;
+      if (renderThread != null) {
+        // Only record the input here, it is handled on the render thread.
+        // MotionEvent.obtain() reuses recycled events, nothing is allocated per event.
+        synchronized (mPendingTouchEvents) {
+          mPendingTouchEvents.add(MotionEvent.obtain(event));
+          if (mOpenTouchEventBatch == null) {
+            mOpenTouchEventBatch = new TouchEventBatch();
+            renderThread.queueEvent(mOpenTouchEventBatch);
+          }
+          mOpenTouchEventBatch.mCount++;
+        }
+        // Keep returning false for ACTION_DOWN as the synchronous path does.
+        return action != MotionEvent.ACTION_DOWN;
+      }
+      return handleSingleTouchEvent(event);
+    }
 
-      if (isCropMode()) {
-        /**
-         * Crop Mode Start
-         */
-        switch (action) {
-          case MotionEvent.ACTION_DOWN:
-            downX = touchX;
-            downY = touchY;
-            handleCropModeDownEvent(touchX, touchY);
-            break;
-
-          case MotionEvent.ACTION_MOVE:
-            handleCropModeMoveEvent(event, touchX, touchY, (CropAction)curAction);
-            break;
-
-          case MotionEvent.ACTION_UP:
-            if (handleCropModeUpEvent(event, downX, downY, (CropAction)curAction)){
-              return true;
-            }
-            break;
+    return false;
+  }
 
-          default:
-            break;
-          /**
-           * Crop Mode End
-           */
-        }
+  private boolean handleSingleTouchEvent(MotionEvent event) {
+    mViewport = mGestureListener.getViewport();
+    int action = event.getAction();
+    float touchX = event.getRawX();
+    float touchY = event.getRawY();
 
-      } else {
+    if (isCropMode()) {
+      /**
+       * Crop Mode Start
+       */
+      switch (action) {
+        case MotionEvent.ACTION_DOWN:
+          downX = touchX;
+          downY = touchY;
+          handleCropModeDownEvent(touchX, touchY);
+          break;
+
+        case MotionEvent.ACTION_MOVE:
+          handleCropModeMoveEvent(event, touchX, touchY, (CropAction)curAction);
+          break;
+
+        case MotionEvent.ACTION_UP:
+          if (handleCropModeUpEvent(event, downX, downY, (CropAction)curAction)){
+            return true;
+          }
+          break;
+
+        default:
+          break;
         /**
-         * Normal Mode Start
+         * Crop Mode End
          */
-        switch (action) {
-          case MotionEvent.ACTION_DOWN:
-            downX = touchX;
-            downY = touchY;
+      }
+
+    } else {
+      /**
+       * Normal Mode Start
+       */
+      switch (action) {
+        case MotionEvent.ACTION_DOWN:
+          downX = touchX;
+          downY = touchY;
 //            lastLineToX = downX;
 //            lastLineToY = downY;
-            createAction(mGestureListener.inverseX(touchX), mGestureListener.inverseY(touchY));
-            break;
-
-          case MotionEvent.ACTION_MOVE:
-//            final float MIN_JOINT_POINT_SPAN = 50;
-            boolean areJointPoints;
-//            Check HistorySize first
-            areJointPoints = event.getHistorySize() > 1;
-//
-//            If HistorySize is OK then check the span between the first two points
-//            if (areJointPoints){
-//              if ( Math.abs(lastLineToX - touchX) > MIN_JOINT_POINT_SPAN ||
-//                  Math.abs(lastLineToY - touchY) > MIN_JOINT_POINT_SPAN ){
-//                lastLineToX = -1F;
-//                lastLineToY = -1F;
-//                areJointPoints = false;
-//
-//              }else{
-//                lastLineToX = touchX;
-//                lastLineToY = touchY;
-//                areJointPoints = true;
-//              }
-//            }
-//
-            if (!areJointPoints){
-              // Do not draw points that are not joint.
-              return true;
-            }
-            handleNormalModeMoveEvent(touchX, touchY);
-            break;
-
-          case MotionEvent.ACTION_UP:
-            return handleNormalModeUpEvent(event, downX, downY);
-
-          default:
-            break;
-        }
-        /**
-         * Normal Mode End
-         */
+          createAction(mViewport.inverseX(touchX), mViewport.inverseY(touchY),
+              event.getPressure(), event.getEventTime());
+          releaseStrokeLayer();
+          if (curAction.isTranslucent()) {
+            startStrokeLayer();
+          }
+          clearPrediction();
+          mStrokePredictor.reset();
+          mStrokePredictor.addSample(mViewport.inverseX(touchX),
+              mViewport.inverseY(touchY), event.getEventTime());
+          break;
+
+        case MotionEvent.ACTION_MOVE:
+          handleNormalModeMoveEvent(event);
+          break;
+
+        case MotionEvent.ACTION_UP:
+          clearPrediction();
+          return handleNormalModeUpEvent(event, downX, downY);
+
+        default:
+          break;
       }
+      /**
+       * Normal Mode End
+       */
     }
 
     return false;
@@ -389,11 +1382,13 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
   }
 
   private boolean handleNormalModeUpEvent(MotionEvent event, float downX, float downY) {
+    // The stroke is all blended into the screenshot by now.
+    releaseStrokeLayer();
     /**
      * Start handling click event first.
      */
     if (isClickEvent(event, downX, downY)) {
-      this.performClick();
+      runOnUiThread(mPerformClickRunnable);
       return true;
     }
     /**
@@ -403,9 +1398,8 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
     /**
      * Start handling draw event.
      */
-    removedActions.clear();
     // Add curAction to the end of the list
-    shownActions.add(curAction);
+    addShownAction(curAction);
     curAction = null;
     return true;
     /**
@@ -413,7 +1407,47 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
      */
   }
 
-  private void handleNormalModeMoveEvent(float touchX, float touchY) {
+  /**
+   * Keep the screenshot before a translucent stroke, and take a layer to draw it into.
+   */
+  private void startStrokeLayer() {
+    mStrokeUnderlay = createEmptyBitmap();
+    new Canvas(mStrokeUnderlay).drawBitmap(getScreenshot(), 0, 0, null);
+    mStrokeLayer = createEmptyBitmap();
+    mStrokeLayerCanvas = new Canvas(mStrokeLayer);
+    mStrokeLayerPaint.setAlpha(Color.alpha(curAction.getColor()));
+  }
+
+  /**
+   * Blend the stroke layer over the screenshot before the stroke, in the given area.
+   */
+  private void compositeStrokeLayer(RectF dirty) {
+    dirty.roundOut(mStrokeLayerRect);
+    if (!mStrokeLayerRect.intersect(0, 0, mStrokeLayer.getWidth(), mStrokeLayer.getHeight())) {
+      return;
+    }
+    // The screenshot is opaque, so drawing the underlay over it replaces it.
+    screenshotCanvas.drawBitmap(mStrokeUnderlay, mStrokeLayerRect, mStrokeLayerRect, null);
+    screenshotCanvas.drawBitmap(mStrokeLayer, mStrokeLayerRect, mStrokeLayerRect,
+        mStrokeLayerPaint);
+  }
+
+  /**
+   * Drop the stroke layer, when the stroke is done or the screenshot changed under it.
+   * The rest of the stroke, if any, is drawn right on the screenshot then.
+   */
+  private void releaseStrokeLayer() {
+    if (mStrokeLayer == null) {
+      return;
+    }
+    mBitmapPool.release(mStrokeLayer);
+    mBitmapPool.release(mStrokeUnderlay);
+    mStrokeLayer = null;
+    mStrokeLayerCanvas = null;
+    mStrokeUnderlay = null;
+  }
+
+  private void handleNormalModeMoveEvent(MotionEvent event) {
     /**
      * The core idea of painting feature:
      *
@@ -422,10 +1456,87 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
      * the screenshot for other use.
      */
     if (curAction != null) {
-      curAction.move(mGestureListener.inverseX(touchX), mGestureListener.inverseY(touchY));
-      curAction.draw(screenshotCanvas);
+      /*
+       * Feed all samples batched into this event, then draw them at once.
+       * Historical samples have no raw coordinates, so shift them as the current one.
+       */
+      float rawOffsetX = event.getRawX() - event.getX();
+      float rawOffsetY = event.getRawY() - event.getY();
+      int historySize = event.getHistorySize();
+      for (int i = 0; i < historySize; i++) {
+        float x = mViewport.inverseX(event.getHistoricalX(i) + rawOffsetX);
+        float y = mViewport.inverseY(event.getHistoricalY(i) + rawOffsetY);
+        curAction.move(x, y, event.getHistoricalPressure(i), event.getHistoricalEventTime(i));
+        mStrokePredictor.addSample(x, y, event.getHistoricalEventTime(i));
+      }
+      float x = mViewport.inverseX(event.getRawX());
+      float y = mViewport.inverseY(event.getRawY());
+      curAction.move(x, y, event.getPressure(), event.getEventTime());
+      mStrokePredictor.addSample(x, y, event.getEventTime());
+
+      if (mStrokeLayer != null) {
+        if (curAction.drawPendingSegments(mStrokeLayerCanvas, curAction.getOpaqueStrokePaint(),
+            mTmpDirtyRect)) {
+          compositeStrokeLayer(mTmpDirtyRect);
+          invalidateScreenshot(mTmpDirtyRect);
+        }
+      } else if (curAction.drawPendingSegments(screenshotCanvas, mTmpDirtyRect)) {
+        invalidateScreenshot(mTmpDirtyRect);
+      }
+      if (mMotionPredictionEnabled) {
+        updatePrediction(curAction.getStrokeWidth());
+      }
+    }
+  }
+
+  /**
+   * Rebuild the provisional tail from the latest samples, it replaces the last one.
+   */
+  private void updatePrediction(float strokeWidth) {
+    clearPrediction();
+    int count = mStrokePredictor.predict(mPredictedPoints);
+    if (count == 0) {
+      return;
+    }
+
+    float lastX = mStrokePredictor.getLastX();
+    float lastY = mStrokePredictor.getLastY();
+    mPredictedPath.moveTo(lastX, lastY);
+    mPredictedBounds.set(lastX, lastY, lastX, lastY);
+    for (int i = 0; i < count; i++) {
+      mPredictedPath.lineTo(mPredictedPoints[2 * i], mPredictedPoints[2 * i + 1]);
+      mPredictedBounds.union(mPredictedPoints[2 * i], mPredictedPoints[2 * i + 1]);
+    }
+    float outset = strokeWidth / 2 + 1;
+    mPredictedBounds.inset(-outset, -outset);
+    mHasPrediction = true;
+    invalidateSurface(mPredictedBounds);
+  }
+
+  /**
+   * Drop the provisional tail, the area it covered is presented from the screenshot again.
+   */
+  private void clearPrediction() {
+    if (mHasPrediction) {
+      mHasPrediction = false;
+      mPredictedPath.rewind();
+      invalidateSurface(mPredictedBounds);
     }
-    onViewRectChanged();
+  }
+
+  /**
+   * Turn the provisional tail drawn ahead of the finger on or off.
+   */
+  public void setMotionPredictionEnabled(final boolean enabled) {
+    queueEvent(new Runnable() {
+      @Override
+      public void run() {
+        mMotionPredictionEnabled = enabled;
+        if (!enabled) {
+          clearPrediction();
+        }
+      }
+    });
   }
 
   private boolean handleCropModeUpEvent(MotionEvent event,
@@ -437,21 +1548,30 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
     // Single click on the cropped area to stop it from being dragging around.
     if (isClickEvent(event, downX, downY) && isTouchingCroppedArea) {
       // draw the final result , clear the cropping path
-      Bitmap resultBitmap = createEmptyBitmap();
-      Canvas resultCanvas = new Canvas(resultBitmap);
-      resultCanvas.drawBitmap(leftBitmap, 0, 0, null);
-      resultCanvas.drawBitmap(croppedBitmap, cropMoveDeltaX, cropMoveDeltaY, null);
-      screenshotCanvas.drawBitmap(resultBitmap, 0, 0, null);
-
-      onViewRectChanged();
+      // The hole is in the screenshot already, only the cropped part goes on top.
+      if (croppedBitmap != null) {
+        screenshotCanvas.drawBitmap(croppedBitmap, mCropBounds.left + cropMoveDeltaX,
+            mCropBounds.top + cropMoveDeltaY, null);
+      }
 
-      cropAction.setDestinationPath(cropAction.getInternalPath());
+      // mCropDragPath is reused by the next crop, keep a copy.
+      Path destinationPath = new Path(cropAction.getInternalPath());
+      cropAction.setDestinationPath(destinationPath);
+      cropAction.setInternalPath(destinationPath);
       cropAction.setMoveDatlaX(cropMoveDeltaX);
       cropAction.setMoveDatlaY(cropMoveDeltaY);
-      // Clear the removed action list every time new action made.
-      removedActions.clear();
+      // Only the hole and the pasted area changed, including the dash path around them.
+      getAffectedBounds(cropAction, mTmpDirtyRect);
+      invalidateScreenshot(mTmpDirtyRect);
+
+      if (croppedBitmap != null) {
+        // The cutout goes with the action, for a replay on the same content.
+        cacheCutout(cropAction, croppedBitmap, mCropBounds, shownActions.size());
+        croppedBitmap = null;
+      }
+
       // Add curAction to the end of the list
-      shownActions.add(cropAction);
+      addShownAction(cropAction);
       curAction = null;
 
       exitCropMode();
@@ -472,17 +1592,16 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
      *    1. Get a screenshot before crop first
      *    2. Auto-close the cropPath if it is not closed
      *    3. Compute bounds of the rect of the cropPath
-     *    4. Copy a screenshot and crop the rect from it and clear the unwanted part
-     *    5. Copy a screenshot and crop the cropPath and clear the area within it
+     *    4. Copy the rect from the screenshot to a bitmap of its size and clear the unwanted part
+     *    5. Fill the area within the cropPath on the screenshot with background color
      *    6. Draw a dash-effect-path on the cropPath indicating the crop is done
      *    7. Record deltaX and deltaY when user drag the cropped part to a new position
      *    8. When user click on the cropped part to stop further movement,
-     *       draw the leftover part to the screenshot first and then
-     *       the crop part with a offset(deltaX,deltaY), and finally apply the screenshot.
+     *       draw the crop part to the screenshot with a offset(deltaX,deltaY),
+     *       and finally apply the screenshot. Or put it back if the crop is given up.
      *
      */
     if (!isCropDone()) {
-      // get a copy of the unedited bitmap first.
       Bitmap bitmapBeforeCrop = getScreenshot();
 
       /*
@@ -493,45 +1612,18 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
       cropAction.closeCropPath(canvas);
       mSurfaceHolder.unlockCanvasAndPost(canvas);
 
-      RectF boundsOfCropPath = new RectF();
-      cropAction.getCropPath().computeBounds(boundsOfCropPath, true);
-      // left The X coordinate of the left side of the rectangle
-      // top The Y coordinate of the top of the rectangle
-      // right The X coordinate of the right side of the rectangle
-      // bottom The Y coordinate of the bottom of the rectangle
-      float left = boundsOfCropPath.left;
-      float right = boundsOfCropPath.right;
-      float top = boundsOfCropPath.top;
-      float bottom = boundsOfCropPath.bottom;
-
-      // Get the cropped bitmap we WANT !!
-      Bitmap croppedRect = Bitmap.createBitmap(
-          bitmapBeforeCrop, (int) left, (int) top,
-          (int) Math.abs(left - right),
-          (int) Math.abs(top - bottom));
-      croppedBitmap = createEmptyBitmap();
-      Canvas painter1 = new Canvas(croppedBitmap);
-      if (croppedRect != null && !croppedRect.isRecycled()) {
-        painter1.drawBitmap(croppedRect, left, top, null);
-        croppedRect.recycle();
-      }
-      // eraser the area between the path and its Rect.
-      painter1.clipRect(boundsOfCropPath);
-      painter1.clipPath(cropAction.getCropPath(), Region.Op.DIFFERENCE);
-      //Mode.CLEAR makes the unwanted area transparent.
-      painter1.drawColor(0, Mode.CLEAR);
-      // by now, croppedBitmap is the result of the irregular crop, for later use.
-
-      // Generate the bitmap after cropping
-      leftBitmap = createEmptyBitmap();
-      Canvas painter2 = new Canvas(leftBitmap);
-      if (bitmapBeforeCrop != null && !bitmapBeforeCrop.isRecycled())
-        painter2.drawBitmap(bitmapBeforeCrop, 0, 0, null);
-      // eraser the area inside the closed path.
-      painter2.clipRect(boundsOfCropPath);
-      painter2.clipPath(cropAction.getCropPath(), Region.Op.INTERSECT);
-      painter2.drawColor(DEFAULT_SKETCHPAD_BG_COLOR);
-      // by now, leftBitmap is what left after the irregular crop, for later use.
+      // by now, croppedBitmap is the result of the irregular crop, and the screenshot
+      // is what left after it.
+      croppedBitmap = cutOutCropArea(screenshotCanvas, cropAction, mCropBounds);
+      // The hole is only presented by crop mode itself, but the mip levels must know.
+      mTmpDirtyRect.set(mCropBounds);
+      mMipChain.invalidate(mTmpDirtyRect);
+      cropAction.getCropPath().computeBounds(mCropPathBounds, true);
+      getCropDragRect(cropAction, 0, 0, mCropDragRect);
+      // The exact area of the path for hit-testing, built once.
+      mCropPathBounds.roundOut(mTmpCropDragRect);
+      mCropClipRegion.set(mTmpCropDragRect);
+      mCropRegion.setPath(cropAction.getCropPath(), mCropClipRegion);
 
       /*
        * Draw a dash-effect cropPath.
@@ -539,6 +1631,9 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
        */
       Canvas canvas2 = mSurfaceHolder.lockCanvas();
       canvas2.drawBitmap(bitmapBeforeCrop, 0, 0, null);
+      if (croppedBitmap != null) {
+        canvas2.drawBitmap(croppedBitmap, mCropBounds.left, mCropBounds.top, null);
+      }
       canvas2.drawPath(cropAction.getCropPath(), cropAction.getPaint());
       mSurfaceHolder.unlockCanvasAndPost(canvas2);
 
@@ -561,6 +1656,17 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
     return false;
   }
 
+  /**
+   * Get the screen area of the selection moved by the given delta, dash path included.
+   */
+  private void getCropDragRect(CropAction cropAction, float dx, float dy, Rect outRect) {
+    float outset = cropAction.getStrokeWidth() / 2 + 1;
+    mTmpCropDragBounds.set(mCropPathBounds);
+    mTmpCropDragBounds.offset(dx, dy);
+    mTmpCropDragBounds.inset(-outset, -outset);
+    mTmpCropDragBounds.roundOut(outRect);
+  }
+
   private void handleCropModeMoveEvent(MotionEvent event,
                                        float touchX, float touchY,
                                        CropAction cropAction) {
@@ -588,23 +1694,30 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
       cropMoveDeltaX = lastCropMoveDeltaX + (curX - downX);
       cropMoveDeltaY = lastCropMoveDeltaY + (curY - downY);
 
-      if (leftBitmap != null && !leftBitmap.isRecycled()
-          && croppedBitmap != null && !croppedBitmap.isRecycled()
+      if (croppedBitmap != null && !croppedBitmap.isRecycled()
           && cropAction != null) {
+        // Only where the selection was and where it is now needs a redraw.
+        getCropDragRect(cropAction, cropMoveDeltaX, cropMoveDeltaY, mTmpCropDragRect);
+        mCropDirtyRect.set(mCropDragRect);
+        mCropDirtyRect.union(mTmpCropDragRect);
+        mCropDragRect.set(mTmpCropDragRect);
       /*
        * Draw the middle result while moving.
        * This should not be done to the screenshot
        * because the middle result is not what we want.
        */
-        Canvas moveCanvas = mSurfaceHolder.lockCanvas();
-        moveCanvas.drawBitmap(leftBitmap, 0, 0, null);
+        Canvas moveCanvas = mSurfaceHolder.lockCanvas(mCropDirtyRect);
+        if (moveCanvas == null) {
+          return;
+        }
+        moveCanvas.drawBitmap(getScreenshot(), 0, 0, null);
         // Move the cropped area when finger moves it
-        moveCanvas.drawBitmap(croppedBitmap, cropMoveDeltaX, cropMoveDeltaY, null);
+        moveCanvas.drawBitmap(croppedBitmap, mCropBounds.left + cropMoveDeltaX,
+            mCropBounds.top + cropMoveDeltaY, null);
 
         // Draw the cropPath when moving.
-        Path originalPath = new Path(cropAction.getCropPath());
-        originalPath.offset(cropMoveDeltaX, cropMoveDeltaY);
-        cropAction.setInternalPath(originalPath);
+        cropAction.getCropPath().offset(cropMoveDeltaX, cropMoveDeltaY, mCropDragPath);
+        cropAction.setInternalPath(mCropDragPath);
         moveCanvas.drawPath(cropAction.getInternalPath(), cropAction.getPaint());
         mSurfaceHolder.unlockCanvasAndPost(moveCanvas);
       }
@@ -617,12 +1730,12 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
 
     } else if (isCropDone() &&
         curAction != null && curAction instanceof CropAction &&
-        !isCroppedAreaTouched((CropAction)curAction, touchX, touchY)) {
+        !isCroppedAreaTouched(touchX, touchY)) {
       isTouchingCroppedArea = false;
 
     } else if (isCropDone() &&
         curAction != null && curAction instanceof CropAction &&
-        isCroppedAreaTouched((CropAction)curAction, touchX, touchY)) {
+        isCroppedAreaTouched(touchX, touchY)) {
       isTouchingCroppedArea = true;
       isCroppedAreaMovingDone = false;
     }
@@ -634,14 +1747,9 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
     setCropDone(false);
     isCroppedAreaMovingDone = true;
     isTouchingCroppedArea = false;
-    if (leftBitmap != null){
-      leftBitmap.recycle();
-      leftBitmap = null;
-    }
-    if (croppedBitmap != null){
-      croppedBitmap.recycle();
-      croppedBitmap = null;
-    }
+    mBitmapPool.release(croppedBitmap);
+    croppedBitmap = null;
+    mCropRegion.setEmpty();
     cropMoveDeltaX = 0;
     cropMoveDeltaY = 0;
     lastCropMoveDeltaX = 0;
@@ -656,12 +1764,139 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
 
   @Override
   public void onViewRectChanged() {
-    if (getScreenshot() != null){
-      RectF rectf = mGestureListener.getDstRect();
-      Canvas canvas = mSurfaceHolder.lockCanvas();
-      canvas.drawBitmap(getScreenshot(), null, rectf, mPaintingPaint);
-      mSurfaceHolder.unlockCanvasAndPost(canvas);
+    mViewportChanged = true;
+    requestRender();
+  }
+
+  /**
+   * Present the screenshot to the surface.
+   * Called on the render thread if there is one.
+   * <p>
+   * Only the damaged area is locked and drawn unless the viewport changed, and only the
+   * part of the screenshot that is on the surface is drawn, so a zoomed-in frame costs
+   * no more than one at 1x.
+   */
+  @Override
+  public void onDrawFrame() {
+    if (getScreenshot() == null){
+      return;
+    }
+
+    // Cleared before the viewport is taken, so a change in between is presented next time.
+    boolean viewportChanged = mViewportChanged;
+    mViewportChanged = false;
+    mViewport = mGestureListener.getViewport();
+    boolean lowQuality = mGestureListener.isViewportMoving();
+    Canvas canvas;
+    if (mFullRedrawRequested || viewportChanged || (mLowQualityPresented && !lowQuality)) {
+      if (viewportChanged) {
+        scheduleSharpViewport();
+      }
+      mFullRedrawRequested = false;
+      canvas = mSurfaceHolder.lockCanvas();
+    } else if (!mDirtyRect.isEmpty()) {
+      mVisibleRect.set(mViewport.inverseX(0), mViewport.inverseY(0),
+          mViewport.inverseX(getWidth()), mViewport.inverseY(getHeight()));
+      if (!RectF.intersects(mDirtyRect, mVisibleRect)) {
+        // Changed out of the viewport only, the surface is still up to date.
+        mDirtyRect.setEmpty();
+        return;
+      }
+      mapToSurface(mDirtyRect, mSurfaceDirtyRect);
+      canvas = mSurfaceHolder.lockCanvas(mSurfaceDirtyRect);
+    } else {
+      // Nothing changed since last frame.
+      return;
+    }
+    mDirtyRect.setEmpty();
+
+    if (canvas == null) {
+      // The surface is not ready or already gone, present everything next time.
+      mFullRedrawRequested = true;
+      return;
+    }
+    RectF dstRect = mViewportDstRect;
+    mViewport.getDstRect(dstRect);
+    // Zoomed out, a level close to the scale is filtered much less than the screenshot.
+    // A transient frame takes one level smaller still, with no filtering at all.
+    float scale = mViewport.getScale();
+    Bitmap frame = mMipChain.getLevelFor(getScreenshot(),
+        lowQuality && scale < 1.0F ? scale / 2 : scale);
+    mLowQualityPresented = lowQuality;
+    // The locked area may be larger than asked for, draw whatever it turned out to be.
+    canvas.getClipBounds(mSurfaceClipRect);
+    if (isSharpViewportValid()) {
+      canvas.drawBitmap(mSharpViewport, 0, 0, null);
+    } else {
+      releaseSharpViewport();
+      if (getVisibleSource(frame, mSurfaceClipRect, mVisibleSrcRect, mVisibleDstRect)) {
+        canvas.drawBitmap(frame, mVisibleSrcRect, mVisibleDstRect,
+            lowQuality ? mFastPaintingPaint : mPaintingPaint);
+      }
+    }
+    if (isCropDone() && croppedBitmap != null && curAction instanceof CropAction) {
+      // The cut waiting to be placed floats over the hole it left in the screenshot.
+      CropAction cropAction = (CropAction) curAction;
+      int saveCount = canvas.save();
+      canvas.translate(dstRect.left, dstRect.top);
+      canvas.scale(dstRect.width() / getScreenshot().getWidth(),
+          dstRect.height() / getScreenshot().getHeight());
+      canvas.drawBitmap(croppedBitmap, mCropBounds.left + cropMoveDeltaX,
+          mCropBounds.top + cropMoveDeltaY, null);
+      canvas.drawPath(cropAction.getInternalPath(), cropAction.getPaint());
+      canvas.restoreToCount(saveCount);
     }
+    if (mHasPrediction && curAction != null) {
+      // The provisional tail goes to the surface only, in the same viewport as the screenshot.
+      int saveCount = canvas.save();
+      canvas.translate(dstRect.left, dstRect.top);
+      canvas.scale(dstRect.width() / getScreenshot().getWidth(),
+          dstRect.height() / getScreenshot().getHeight());
+      canvas.drawPath(mPredictedPath, curAction.getStrokePaint());
+      canvas.restoreToCount(saveCount);
+    }
+    mSurfaceHolder.unlockCanvasAndPost(canvas);
+  }
+
+  /**
+   * Get the part of the bitmap presenting the screenshot that shows in an area of the
+   * surface with current viewport, and where it goes on the surface.
+   * One more pixel is taken on each side for bitmap filtering.
+   *
+   * @param frame the screenshot or one of its mip levels
+   * @return false if none of the bitmap shows in the area
+   */
+  private boolean getVisibleSource(Bitmap frame, Rect surfaceRect,
+                                   Rect outSrcRect, RectF outDstRect) {
+    // Pixels of the frame per pixel of the screenshot.
+    float ratioX = (float) frame.getWidth() / getScreenshot().getWidth();
+    float ratioY = (float) frame.getHeight() / getScreenshot().getHeight();
+    outSrcRect.set(
+        (int) Math.floor(mViewport.inverseX(surfaceRect.left) * ratioX) - 1,
+        (int) Math.floor(mViewport.inverseY(surfaceRect.top) * ratioY) - 1,
+        (int) Math.ceil(mViewport.inverseX(surfaceRect.right) * ratioX) + 1,
+        (int) Math.ceil(mViewport.inverseY(surfaceRect.bottom) * ratioY) + 1);
+    if (!outSrcRect.intersect(0, 0, frame.getWidth(), frame.getHeight())) {
+      return false;
+    }
+    outDstRect.set(
+        mViewport.transformX(outSrcRect.left / ratioX),
+        mViewport.transformY(outSrcRect.top / ratioY),
+        mViewport.transformX(outSrcRect.right / ratioX),
+        mViewport.transformY(outSrcRect.bottom / ratioY));
+    return true;
+  }
+
+  /**
+   * Map a rect of the screenshot to the surface with current viewport.
+   * One more pixel is added on each side for bitmap filtering.
+   */
+  private void mapToSurface(RectF screenshotRect, Rect outSurfaceRect) {
+    outSurfaceRect.set(
+        (int) Math.floor(mViewport.transformX(screenshotRect.left)) - 1,
+        (int) Math.floor(mViewport.transformY(screenshotRect.top)) - 1,
+        (int) Math.ceil(mViewport.transformX(screenshotRect.right)) + 1,
+        (int) Math.ceil(mViewport.transformY(screenshotRect.bottom)) + 1);
   }
 
   @Override
@@ -685,6 +1920,10 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
   }
 
   public void createAction(float x, float y) {
+    createAction(x, y, Stroke.DEFAULT_PRESSURE, 0);
+  }
+
+  private void createAction(float x, float y, float pressure, long timeMillis) {
     Brush newBrush = new Brush();
     if (curBrush != null) {
       newBrush.setSize(curBrush.getSize());
@@ -695,7 +1934,7 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
       newColor = curColor;
     }
 
-    curAction = new Action(newBrush, newColor, x, y);
+    curAction = new Action(newBrush, newColor, x, y, pressure, timeMillis);
   }
 
   /**
@@ -709,38 +1948,95 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
 
   public void setScreenshot(Bitmap newScreenshot) {
     this.screenshotBitmap = newScreenshot;
+    mMipChain.invalidate();
   }
 
+  /**
+   * Get a transparent bitmap of the size of this view from the pool,
+   * hand it back by mBitmapPool.release() when done.
+   */
   private Bitmap createEmptyBitmap() {
-    return Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+    return mBitmapPool.acquire(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
   }
 
   /**
    * undo last action
    *
-   * @return true if undone
+   * @return true if there is likely something to undo, the undo itself is done later
    */
   public boolean undo() {
-    if (haveActionsToShow()) {
-      removedActions.add(shownActions.remove(shownActions.size() - 1));
-      performShownActions();
-      return true;
-    }
-    return false;
+    // Checked on the render thread, after the touch events queued before.
+    queueEvent(new Runnable() {
+      @Override
+      public void run() {
+        if (!shownActions.isEmpty()) {
+          performUndo();
+        }
+      }
+    });
+    return haveActionsToShow() || hasPendingTouchEvents();
   }
 
   /**
    * cancel last undo() operation
    *
-   * @return true if recovered from last undo()
+   * @return true if there is likely something to redo, the redo itself is done later
    */
   public boolean redo() {
-    if (removedActions != null && removedActions.size() > 0) {
-      shownActions.add(removedActions.remove(removedActions.size() - 1));
+    queueEvent(new Runnable() {
+      @Override
+      public void run() {
+        if (!removedActions.isEmpty()) {
+          performRedo();
+        }
+      }
+    });
+    return haveActionsToRedo();
+  }
+
+  private void performUndo() {
+    giveUpCrop();
+    releaseStrokeLayer();
+    int actionCount = shownActions.size();
+    removedActions.add(shownActions.remove(actionCount - 1));
+    updateHistoryCounts();
+    mAutosaveJournal.appendUndo();
+    onAutosaveAppended();
+    if (mHistoryMode == HistoryMode.PIXEL_PATCH) {
+      if (mPatchHistory.undo(getScreenshot(), actionCount, mTmpDirtyRect)) {
+        invalidateScreenshot(mTmpDirtyRect);
+        return;
+      }
+      // No patch for this action, e.g. dropped for the budget or drawn before switching
+      // mode. Replayed from the nearest keyframe, the newer patches are kept.
+      performShownActions();
+    } else {
       performShownActions();
-      return true;
     }
-    return false;
+  }
+
+  private void performRedo() {
+    giveUpCrop();
+    releaseStrokeLayer();
+    Action action = removedActions.remove(removedActions.size() - 1);
+    shownActions.add(action);
+    updateHistoryCounts();
+    mAutosaveJournal.appendRedo();
+    onAutosaveAppended();
+    if (mHistoryMode == HistoryMode.PIXEL_PATCH
+        && mPatchHistory.redo(getScreenshot(), shownActions.size(), mTmpDirtyRect)) {
+      invalidateScreenshot(mTmpDirtyRect);
+      return;
+    }
+
+    // No need to replay, just perform the action again on top of the screenshot.
+    performAction(action, shownActions.size() - 1);
+    getAffectedBounds(action, mTmpDirtyRect);
+    if (mHistoryMode == HistoryMode.PIXEL_PATCH) {
+      mPatchHistory.record(getScreenshot(), mTmpDirtyRect, shownActions.size());
+    }
+    mCheckpoints.onActionsShown(shownActions, getScreenshot());
+    invalidateScreenshot(mTmpDirtyRect);
   }
 
   public void setSavedPaintingPath(String filepath) {
@@ -750,16 +2046,22 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
 
   public void clearSavedPaintingPath() {
     savedFilePath = "";
+    mLoadedDocumentPath = null;
   }
 
   public boolean isCropMode() {
     return mIsCropMode;
   }
 
-  private void setCropMode(boolean newMode){
+  private void setCropMode(final boolean newMode){
     mIsCropMode = newMode;
     if (mCropModeListener != null){
-      mCropModeListener.onModeChanged(newMode);
+      runOnUiThread(new Runnable() {
+        @Override
+        public void run() {
+          mCropModeListener.onModeChanged(newMode);
+        }
+      });
     }
   }
 
@@ -770,41 +2072,67 @@ public class Sketchpad extends SurfaceView implements SurfaceHolder.Callback, Sk
   private void setCropDone(boolean isDone){
     mIsCropped = isDone;
     if(mCropModeListener != null && isDone){
-      mCropModeListener.onCropDone();
+      runOnUiThread(new Runnable() {
+        @Override
+        public void run() {
+          mCropModeListener.onCropDone();
+        }
+      });
     }
   }
 
   public void toggleCropMode() {
-    if( isCropMode() ){
-      exitCropMode();
-    }else{
-      setCropMode(true);
-    }
+    queueEvent(new Runnable() {
+      @Override
+      public void run() {
+        if( isCropMode() ){
+          // The crop is given up, fill the hole with what was there.
+          restoreCropArea();
+          exitCropMode();
+          // The crop preview was drawn to the surface only, present the screenshot again.
+          invalidateScreenshot();
+        }else{
+          setCropMode(true);
+        }
+      }
+    });
   }
 
-  private boolean isCroppedAreaTouched(CropAction cropAction, float x, float y) {
-    // NOTE: this approach maybe slightly incorrect.
-    RectF boundsOfCropPath = new RectF();
-    cropAction.getInternalPath().computeBounds(boundsOfCropPath, false);
-    return boundsOfCropPath.contains(x, y);
+  private boolean isCroppedAreaTouched(float x, float y) {
+    // The region stays where the path was closed, so move the point back instead.
+    return mCropRegion.contains((int) (x - cropMoveDeltaX), (int) (y - cropMoveDeltaY));
   }
 
   public void clear() {
-    if ( !haveActionsToShow() && savedPaintingBitmap == null){
-      return;
-    }
+    queueEvent(new Runnable() {
+      @Override
+      public void run() {
+        if (shownActions.isEmpty() && savedPaintingBitmap == null){
+          return;
+        }
+        giveUpCrop();
+        releaseStrokeLayer();
 
-    if (savedPaintingBitmap != null) {
-      clearSavedPaintingPath();
-      savedPaintingBitmap.recycle();
-      // After recycling a bitmap, we need to set it to null as well.
-      savedPaintingBitmap = null;
-    }
-    shownActions.clear();
-    removedActions.clear();
-    screenshotCanvas.drawColor(DEFAULT_SKETCHPAD_BG_COLOR);
+        if (savedPaintingBitmap != null) {
+          clearSavedPaintingPath();
+          // Not recycled, the autosave may still be writing it in background.
+          setSavedPaintingBitmap(null);
+        }
+        shownActions.clear();
+        removedActions.clear();
+        updateHistoryCounts();
+        mCheckpoints.clear();
+        releaseAllCutouts();
+        mAutosaveJournal.appendClear();
+        onAutosaveAppended();
+        screenshotCanvas.drawColor(DEFAULT_SKETCHPAD_BG_COLOR);
+        if (mHistoryMode == HistoryMode.PIXEL_PATCH) {
+          mPatchHistory.reset(getScreenshot());
+        }
 
-    onViewRectChanged();
+        invalidateScreenshot();
+      }
+    });
   }
 
 }
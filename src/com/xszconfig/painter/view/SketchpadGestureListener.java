@@ -1,28 +1,111 @@
 package com.xszconfig.painter.view;
 
-import android.animation.ObjectAnimator;
-import android.animation.ValueAnimator;
 import android.content.Context;
 import android.graphics.RectF;
+import android.os.SystemClock;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
+import android.view.ViewConfiguration;
 import android.widget.Toast;
 
 import com.xszconfig.painter.R;
 
+/**
+ * Scale and translation of the viewport of a {@link Sketchpad}.
+ * <p>
+ * Changes of the viewport, by gestures or by animations, are applied right away but
+ * reported to the {@link ViewRectChangedListener} at most once per vsync through
+ * {@link Choreographer}, so a burst of changes costs one present. Snap-back, fling and
+ * double-tap zoom are all advanced on the same frame callback.
+ * <p>
+ * Only touched on the UI thread, except that the viewport is read by the render thread.
+ */
 public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGestureListener {
   private boolean mFakeScale;
-  private boolean mScaling;
+  private volatile boolean mScaling;
   private Context mContext;
   private static final float FINAL_MAX_SCALE = 10.0F;
   private static final float MAX_WHEN_SCALING = 20.0F;
   private static final float PERCENTAGE_TO_ANIMATE_BACK = 0.5F;
 
-  private ValueAnimator mAnimator;
+  private static final long ANIMATION_DURATION_NANOS = 300L * 1000 * 1000;
+  /**
+   * Scale a double tap zooms in to.
+   */
+  private static final float DOUBLE_TAP_SCALE = 3.0F;
+  /**
+   * A fling loses this part of its velocity per second.
+   */
+  private static final float FLING_FRICTION = 0.95F;
+  /**
+   * Velocity samples older than this when fingers go up are not taken for a fling.
+   */
+  private static final long MAX_FLING_SAMPLE_AGE_MILLIS = 100;
+
+  /**
+   * Whether a frame callback is posted to report the viewport and advance animations.
+   */
+  private boolean mFrameScheduled = false;
+  private boolean mViewRectChanged = false;
+  private volatile boolean mAnimating = false;
+  private long mAnimationStartNanos = -1;
+  private volatile boolean mFlinging = false;
+  private long mLastFlingFrameNanos = -1;
+  private float mFlingVelocityX;
+  private float mFlingVelocityY;
+  private final float mMinFlingVelocity;
+
+  /**
+   * Velocity of the focus of two fingers, in pixels per second.
+   */
+  private float mFocusVelocityX;
+  private float mFocusVelocityY;
+  private float mLastFocusX;
+  private float mLastFocusY;
+  private long mLastFocusTime = -1;
+
+  /**
+   * Two-finger taps, for double-tap zoom.
+   */
+  private final int mTouchSlop;
+  private long mTwoFingerDownTime = -1;
+  private boolean mTwoFingerMoved;
+  private float mTwoFingerDownX;
+  private float mTwoFingerDownY;
+  private long mLastTapTime = -1;
+  private float mLastTapX;
+  private float mLastTapY;
+
+  private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      mFrameScheduled = false;
+      if (mAnimating) {
+        stepAnimation(frameTimeNanos);
+      }
+      if (mFlinging) {
+        stepFling(frameTimeNanos);
+      }
+      if (mViewRectChanged) {
+        mViewRectChanged = false;
+        calculateDstRect();
+        mListener.onViewRectChanged();
+      }
+      if (mAnimating || mFlinging) {
+        scheduleFrame();
+      }
+    }
+  };
+
   private float mBeginScale;
   private final float mCenterX;
   private final float mCenterY;
   private RectF mDstRect;
+  /**
+   * Published for the render thread every time the viewport changes.
+   */
+  private volatile Viewport mViewport;
   private final int mHeight;
   private float mInverseScale;
   private float mLastScale;
@@ -52,11 +135,36 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
     return mScaling;
   }
 
+  /**
+   * Whether the viewport is changing by a gesture or an animation, so that frames are
+   * transient. The viewport is reported once more when it settles.
+   * Safe to call from any thread.
+   */
+  public boolean isViewportMoving() {
+    return mScaling || mAnimating || mFlinging;
+  }
+
   @Override
   public boolean onScale(ScaleGestureDetector detector) {
+    trackFocus(detector.getFocusX(), detector.getFocusY());
     return this.onScale(detector.getFocusX(), detector.getFocusY(), detector.getScaleFactor());
   }
 
+  /**
+   * Keep a smoothed velocity of the focus, to fling with when fingers go up.
+   */
+  private void trackFocus(float x, float y) {
+    long now = SystemClock.uptimeMillis();
+    if (mLastFocusTime >= 0 && now > mLastFocusTime) {
+      float dt = (now - mLastFocusTime) / 1000.0F;
+      mFocusVelocityX = 0.6F * (x - mLastFocusX) / dt + 0.4F * mFocusVelocityX;
+      mFocusVelocityY = 0.6F * (y - mLastFocusY) / dt + 0.4F * mFocusVelocityY;
+    }
+    mLastFocusX = x;
+    mLastFocusY = y;
+    mLastFocusTime = now;
+  }
+
   @Override
   public boolean onScaleBegin(ScaleGestureDetector detector) {
     if (mFakeScale) {
@@ -66,6 +174,10 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
       return true;
     } else {
       mScaling = true;
+      mFocusVelocityX = 0.0F;
+      mFocusVelocityY = 0.0F;
+      mLastFocusTime = -1;
+      trackFocus(detector.getFocusX(), detector.getFocusY());
       return this.onScaleBegin(detector.getFocusX(), detector.getFocusY());
     }
   }
@@ -75,6 +187,14 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
     mScaling = false;
     mFakeScale = false;
     this.onScaleEnd();
+    if (!mAnimating && mLastFocusTime >= 0
+        && SystemClock.uptimeMillis() - mLastFocusTime <= MAX_FLING_SAMPLE_AGE_MILLIS) {
+      onFling(mFocusVelocityX, mFocusVelocityY);
+    }
+    if (!isViewportMoving()) {
+      // Settled right away, report it for a final frame.
+      notifyViewRectChanged();
+    }
     // Todo The invoke time is not very correct here.
     toastScale();
   }
@@ -99,7 +219,77 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
     mDstRect = new RectF();
     calculateDstRect();
     mValueHolder = new ValueHolder();
-    mAnimator = ObjectAnimator.ofFloat(mValueHolder, "ratio", new float[]{ 0.0F, 1.0F });
+    ViewConfiguration configuration = ViewConfiguration.get(mContext);
+    mTouchSlop = configuration.getScaledTouchSlop();
+    mMinFlingVelocity = configuration.getScaledMinimumFlingVelocity();
+  }
+
+  /**
+   * Report the viewport on next vsync, along with any other change until then.
+   */
+  private void notifyViewRectChanged() {
+    mViewRectChanged = true;
+    scheduleFrame();
+  }
+
+  private void scheduleFrame() {
+    if (!mFrameScheduled) {
+      mFrameScheduled = true;
+      Choreographer.getInstance().postFrameCallback(mFrameCallback);
+    }
+  }
+
+  /**
+   * Animate the viewport from where it is to the given one.
+   */
+  private void animateTo(float scale, float translateX, float translateY) {
+    cancelAnimations();
+    mValueHolder.init(mScale, mTranslateX, mTranslateY, scale, translateX, translateY);
+    mAnimating = true;
+    mAnimationStartNanos = -1;
+    scheduleFrame();
+  }
+
+  /**
+   * Stop the viewport animations in their tracks.
+   */
+  private void cancelAnimations() {
+    mAnimating = false;
+    mFlinging = false;
+  }
+
+  private void stepAnimation(long frameTimeNanos) {
+    if (mAnimationStartNanos < 0) {
+      mAnimationStartNanos = frameTimeNanos;
+    }
+    float t = Math.min(1.0F,
+        (float) (frameTimeNanos - mAnimationStartNanos) / ANIMATION_DURATION_NANOS);
+    // Accelerate then decelerate, as the default interpolator of animators.
+    mValueHolder.setRatio((float) (Math.cos((t + 1) * Math.PI) / 2.0D) + 0.5F);
+    if (t >= 1.0F) {
+      mAnimating = false;
+    }
+  }
+
+  private void stepFling(long frameTimeNanos) {
+    if (mLastFlingFrameNanos < 0) {
+      mLastFlingFrameNanos = frameTimeNanos;
+      return;
+    }
+    float dt = (frameTimeNanos - mLastFlingFrameNanos) / 1e9F;
+    mLastFlingFrameNanos = frameTimeNanos;
+    mTranslateX += mFlingVelocityX * dt;
+    mTranslateY += mFlingVelocityY * dt;
+    float decay = (float) Math.pow(1.0F - FLING_FRICTION, dt);
+    mFlingVelocityX *= decay;
+    mFlingVelocityY *= decay;
+    calculateDstRect();
+    mViewRectChanged = true;
+    if (Math.hypot(mFlingVelocityX, mFlingVelocityY) < mMinFlingVelocity
+        || isOutOfBounds()) {
+      mFlinging = false;
+      snapIntoBounds(mScale, false);
+    }
   }
 
   private void calculateDstRect() {
@@ -108,6 +298,15 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
     float f2 = transformX(mWidth);
     float f3 = transformY(mHeight);
     mDstRect.set(f, f1, f2, f3);
+    mViewport = new Viewport(mScale, mTranslateX, mTranslateY, mCenterX, mCenterY, mDstRect);
+  }
+
+  /**
+   * Get the viewport as it is now, as a whole. The render thread takes this instead of
+   * the fields, which are changed on the UI thread in between.
+   */
+  public Viewport getViewport() {
+    return mViewport;
   }
 
   public RectF getDstRect() {
@@ -145,17 +344,72 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
 
   public boolean onBackPressed() {
     if (mScale > 1.0F || Math.abs(mTranslateX) > 1.0F || Math.abs(mTranslateY) > 1.0F) {
-      mAnimator.cancel();
-      mValueHolder.init(mScale, mTranslateX, mTranslateY, 1.0F, 0.0F, 0.0F);
-      mAnimator.start();
+      animateTo(1.0F, 0.0F, 0.0F);
       return true;
     } else {
       return false;
     }
   }
 
+  /**
+   * Zoom in to the tapped point, or back to standard size if zoomed in already.
+   */
   public boolean onDoubleTap(float f, float f1) {
-    return false;
+    if (mScale > 1.0F || Math.abs(mTranslateX) > 1.0F || Math.abs(mTranslateY) > 1.0F) {
+      animateTo(1.0F, 0.0F, 0.0F);
+      return true;
+    }
+    // Keep the tapped point under the finger, but the painting still over the whole view.
+    float maxTranslateX = mCenterX * (DOUBLE_TAP_SCALE - 1.0F);
+    float maxTranslateY = mCenterY * (DOUBLE_TAP_SCALE - 1.0F);
+    float translateX = f - mCenterX - (inverseX(f) - mCenterX) * DOUBLE_TAP_SCALE;
+    float translateY = f1 - mCenterY - (inverseY(f1) - mCenterY) * DOUBLE_TAP_SCALE;
+    animateTo(DOUBLE_TAP_SCALE,
+        Math.max(-maxTranslateX, Math.min(maxTranslateX, translateX)),
+        Math.max(-maxTranslateY, Math.min(maxTranslateY, translateY)));
+    return true;
+  }
+
+  /**
+   * Feed events with two fingers down, a quick tap of two fingers twice is a double tap.
+   */
+  public void onTwoFingerTouchEvent(MotionEvent event) {
+    float focusX = 0.5F * (event.getX(0) + event.getX(1));
+    float focusY = 0.5F * (event.getY(0) + event.getY(1));
+    switch (event.getActionMasked()) {
+      case MotionEvent.ACTION_POINTER_DOWN:
+        mTwoFingerDownTime = event.getEventTime();
+        mTwoFingerMoved = false;
+        mTwoFingerDownX = focusX;
+        mTwoFingerDownY = focusY;
+        break;
+      case MotionEvent.ACTION_MOVE:
+        if (mScaling
+            || Math.hypot(focusX - mTwoFingerDownX, focusY - mTwoFingerDownY) > mTouchSlop) {
+          mTwoFingerMoved = true;
+        }
+        break;
+      case MotionEvent.ACTION_POINTER_UP:
+        long upTime = event.getEventTime();
+        boolean isTap = mTwoFingerDownTime >= 0 && !mTwoFingerMoved
+            && upTime - mTwoFingerDownTime <= ViewConfiguration.getDoubleTapTimeout();
+        mTwoFingerDownTime = -1;
+        if (!isTap) {
+          mLastTapTime = -1;
+        } else if (mLastTapTime >= 0
+            && upTime - mLastTapTime <= ViewConfiguration.getDoubleTapTimeout()
+            && Math.hypot(focusX - mLastTapX, focusY - mLastTapY) <= 4 * mTouchSlop) {
+          mLastTapTime = -1;
+          onDoubleTap(focusX, focusY);
+        } else {
+          mLastTapTime = upTime;
+          mLastTapX = focusX;
+          mLastTapY = focusY;
+        }
+        break;
+      default:
+        break;
+    }
   }
 
   public boolean onDoubleTapEvent(MotionEvent motionevent) {
@@ -165,8 +419,23 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
   public void onDown(float f, float f1) {
   }
 
+  /**
+   * Keep the viewport moving with the given velocity after fingers go up, slowing down.
+   *
+   * @param f velocity in X, in pixels per second
+   * @param f1 velocity in Y, in pixels per second
+   */
   public boolean onFling(float f, float f1) {
-    return false;
+    if (Math.hypot(f, f1) < mMinFlingVelocity) {
+      return false;
+    }
+    cancelAnimations();
+    mFlingVelocityX = f;
+    mFlingVelocityY = f1;
+    mFlinging = true;
+    mLastFlingFrameNanos = -1;
+    scheduleFrame();
+    return true;
   }
 
   public void onLongPress(float f, float f1) {
@@ -183,7 +452,7 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
       mScale = (f5 * mBeginScale) / mScaleBase;
       mInverseScale = 1.0F / mScale;
       calculateDstRect();
-      mListener.onViewRectChanged();
+      notifyViewRectChanged();
     }
     return false;
   }
@@ -192,7 +461,7 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
     /*
      * Cancel current animation so that it'll stop in its tracks.
      */
-    mAnimator.cancel();
+    cancelAnimations();
     /*
      * mLastScale is like getScaleFactor(),
      * scaling factor from the previous scale event to the current event.
@@ -217,8 +486,6 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
 
   public void onScaleEnd() {
     float savedScale = mScale;
-    float savedTranslateX = mTranslateX;
-    float savedTranslateY = mTranslateY;
     boolean flag_isScaleLessThan10Percent;
     if (Math.abs(mScale / mBeginScale - 1.0F) <= (1.0F - PERCENTAGE_TO_ANIMATE_BACK)){
       flag_isScaleLessThan10Percent = true;
@@ -229,9 +496,7 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
      * If is too small, smaller than 50%, animate it back to original standard size and position.
      */
     if (!flag_isScaleLessThan10Percent && mScale < PERCENTAGE_TO_ANIMATE_BACK) {
-      mAnimator.cancel();
-      mValueHolder.init(mScale, mTranslateX, mTranslateY, 1.0F, 0.0F, 0.0F);
-      mAnimator.start();
+      animateTo(1.0F, 0.0F, 0.0F);
 
     /*
      * If is small, 50% ~ 100%, animate it back to original standard size, and adjust translateXY if needed
@@ -239,9 +504,6 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
     } else {
       float finalScale;
       boolean flag_smallerThanStandard;
-      float finalTranslateX;
-      boolean flag_needAdjustTranslateXY;
-      float finalTranslateY;
       if (mScale < 1.0F) {
         flag_smallerThanStandard = true;
         finalScale = 1.0F;
@@ -251,52 +513,66 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
      */
       } else {
         if (mScale > FINAL_MAX_SCALE) {
-          mAnimator.cancel();
           float scaleToAdjust = mScale - FINAL_MAX_SCALE;
           float XToAdjust = scaleToAdjust * (mStartFocusX - mCenterX);
           float YToAdjust = scaleToAdjust * (mStartFocusY - mCenterY);
-          mValueHolder.init(mScale, mTranslateX, mTranslateY,
-              FINAL_MAX_SCALE, XToAdjust + mTranslateX, YToAdjust + mTranslateY);
-          mAnimator.start();
+          animateTo(FINAL_MAX_SCALE, XToAdjust + mTranslateX, YToAdjust + mTranslateY);
           return;
         }
         finalScale = savedScale;
         flag_smallerThanStandard = false;
       }
-      /*
-       * Compute finalTranslateX and finalTranslateY
-       */
-      if (mDstRect.left > mViewLeft) {
-        flag_needAdjustTranslateXY = true;
-        finalTranslateX = mViewLeft + 0.5F * (finalScale * (float) mWidth - (float) mWidth);
-      } else {
-        finalTranslateX = savedTranslateX;
-        flag_needAdjustTranslateXY = false;
-      }
-      if (mDstRect.top > mViewTop) {
-        flag_needAdjustTranslateXY = true;
-        finalTranslateY = mViewTop + 0.5F * (finalScale * (float) mHeight - (float) mHeight);
-      } else {
-        finalTranslateY = savedTranslateY;
-      }
-      if (mDstRect.right < mViewRight) {
-        flag_needAdjustTranslateXY = true;
-        finalTranslateX = mViewRight - (float) mWidth - 0.5F * (finalScale * (float) mWidth - (float) mWidth);
-      }
-      if (mDstRect.bottom < mViewBottom) {
-        flag_needAdjustTranslateXY = true;
-        finalTranslateY = mViewBottom - (float) mHeight - 0.5F * (finalScale * (float) mHeight - (float) mHeight);
-      }
-      /*
-       * Finally we can auto-scale it to what we want! Cheers!
-       */
-      if (flag_smallerThanStandard || flag_needAdjustTranslateXY) {
-        mAnimator.cancel();
-        mValueHolder.init(mScale, mTranslateX, mTranslateY, finalScale, finalTranslateX, finalTranslateY);
-        mAnimator.start();
-        return;
-      }
+      snapIntoBounds(finalScale, flag_smallerThanStandard);
+    }
+  }
+
+  private boolean isOutOfBounds() {
+    return mDstRect.left > mViewLeft || mDstRect.top > mViewTop
+        || mDstRect.right < mViewRight || mDstRect.bottom < mViewBottom;
+  }
+
+  /**
+   * Animate to the given scale if asked, adjusting translateXY if the painting leaves
+   * too much of the view uncovered.
+   *
+   * @return true if an animation is started
+   */
+  private boolean snapIntoBounds(float finalScale, boolean scaleChanged) {
+    float finalTranslateX;
+    boolean flag_needAdjustTranslateXY;
+    float finalTranslateY;
+    /*
+     * Compute finalTranslateX and finalTranslateY
+     */
+    if (mDstRect.left > mViewLeft) {
+      flag_needAdjustTranslateXY = true;
+      finalTranslateX = mViewLeft + 0.5F * (finalScale * (float) mWidth - (float) mWidth);
+    } else {
+      finalTranslateX = mTranslateX;
+      flag_needAdjustTranslateXY = false;
     }
+    if (mDstRect.top > mViewTop) {
+      flag_needAdjustTranslateXY = true;
+      finalTranslateY = mViewTop + 0.5F * (finalScale * (float) mHeight - (float) mHeight);
+    } else {
+      finalTranslateY = mTranslateY;
+    }
+    if (mDstRect.right < mViewRight) {
+      flag_needAdjustTranslateXY = true;
+      finalTranslateX = mViewRight - (float) mWidth - 0.5F * (finalScale * (float) mWidth - (float) mWidth);
+    }
+    if (mDstRect.bottom < mViewBottom) {
+      flag_needAdjustTranslateXY = true;
+      finalTranslateY = mViewBottom - (float) mHeight - 0.5F * (finalScale * (float) mHeight - (float) mHeight);
+    }
+    /*
+     * Finally we can auto-scale it to what we want! Cheers!
+     */
+    if (scaleChanged || flag_needAdjustTranslateXY) {
+      animateTo(finalScale, finalTranslateX, finalTranslateY);
+      return true;
+    }
+    return false;
   }
 
   private void toastScale(){
@@ -365,7 +641,7 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
       mTranslateX = f1 * mStartTranslateX + mTargetTranslateX * mRatio;
       mTranslateY = f1 * mStartTranslateY + mTargetTranslateY * mRatio;
       calculateDstRect();
-      mListener.onViewRectChanged();
+      mViewRectChanged = true;
     }
 
     private float mRatio;
@@ -383,6 +659,77 @@ public class SketchpadGestureListener implements ScaleGestureDetector.OnScaleGes
     }
   }
 
+  /**
+   * Immutable copy of the scale and translation, safe to use from any thread.
+   */
+  public static final class Viewport {
+    private final float mScale;
+    private final float mInverseScale;
+    private final float mTranslateX;
+    private final float mTranslateY;
+    private final float mCenterX;
+    private final float mCenterY;
+    private final float mDstLeft;
+    private final float mDstTop;
+    private final float mDstRight;
+    private final float mDstBottom;
+
+    Viewport(float scale, float translateX, float translateY, float centerX, float centerY,
+             RectF dstRect) {
+      mScale = scale;
+      mInverseScale = 1.0F / scale;
+      mTranslateX = translateX;
+      mTranslateY = translateY;
+      mCenterX = centerX;
+      mCenterY = centerY;
+      mDstLeft = dstRect.left;
+      mDstTop = dstRect.top;
+      mDstRight = dstRect.right;
+      mDstBottom = dstRect.bottom;
+    }
+
+    public float getScale() {
+      return mScale;
+    }
+
+    /**
+     * @param outRect where the whole painting goes on the view
+     */
+    public void getDstRect(RectF outRect) {
+      outRect.set(mDstLeft, mDstTop, mDstRight, mDstBottom);
+    }
+
+    public float getDstLeft() {
+      return mDstLeft;
+    }
+
+    public float getDstTop() {
+      return mDstTop;
+    }
+
+    /**
+     * @see SketchpadGestureListener#transformX(float)
+     */
+    public float transformX(float f) {
+      return (f - mCenterX) * mScale + mCenterX + mTranslateX;
+    }
+
+    public float transformY(float f) {
+      return (f - mCenterY) * mScale + mCenterY + mTranslateY;
+    }
+
+    /**
+     * @see SketchpadGestureListener#inverseX(float)
+     */
+    public float inverseX(float f) {
+      return (f - mTranslateX - mCenterX) * mInverseScale + mCenterX;
+    }
+
+    public float inverseY(float f) {
+      return (f - mTranslateY - mCenterY) * mInverseScale + mCenterY;
+    }
+  }
+
   public static interface ViewRectChangedListener {
     public abstract void onViewRectChanged();
   }
@@ -0,0 +1,146 @@
+package com.xszconfig.painter.view;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.view.Choreographer;
+
+/**
+ * The thread that owns the screenshot canvas and the surface of a {@link Sketchpad}.
+ * <p>
+ * Touch handling on the UI thread only records input and queues it here with
+ * {@link #queueEvent(Runnable)}. All rasterization happens on this thread, and
+ * the surface is presented at most once per vsync no matter how many times
+ * {@link #requestRender()} is called in between.
+ *
+ * @author xszconfig@gmail.com
+ */
+class SketchpadRenderThread extends HandlerThread implements Choreographer.FrameCallback {
+
+  public interface Renderer {
+    /**
+     * Called on the render thread once per vsync when a render was requested.
+     */
+    public void onDrawFrame();
+  }
+
+  private final Renderer mRenderer;
+  private Handler mHandler;
+
+  /**
+   * Only touched on the render thread.
+   */
+  private boolean mFrameScheduled = false;
+
+  private final Object mQuitLock = new Object();
+
+  /**
+   * Set once quitAndWait() is called, guarded by mQuitLock.
+   */
+  private boolean mQuitRequested = false;
+
+  private final Runnable mScheduleFrameRunnable = new Runnable() {
+    @Override
+    public void run() {
+      scheduleFrame();
+    }
+  };
+
+  SketchpadRenderThread(Renderer renderer) {
+    super("SketchpadRenderThread", Process.THREAD_PRIORITY_DISPLAY);
+    mRenderer = renderer;
+  }
+
+  @Override
+  public synchronized void start() {
+    super.start();
+    // getLooper() blocks until the looper of this thread is prepared.
+    mHandler = new Handler(getLooper());
+  }
+
+  public boolean isRenderThread() {
+    return Looper.myLooper() == getLooper();
+  }
+
+  /**
+   * Run the given work on the render thread, after all work queued before it.
+   *
+   * @return false if the thread is quitting and the work will never run
+   */
+  public boolean queueEvent(Runnable r) {
+    synchronized (mQuitLock) {
+      return !mQuitRequested && mHandler.post(r);
+    }
+  }
+
+  /**
+   * Run the given work on the render thread after the delay.
+   */
+  public void queueEventDelayed(Runnable r, long delayMillis) {
+    mHandler.postDelayed(r, delayMillis);
+  }
+
+  /**
+   * Remove the given work if it has not run yet.
+   */
+  public void removeEvent(Runnable r) {
+    mHandler.removeCallbacks(r);
+  }
+
+  /**
+   * Ask for the surface to be presented on the next vsync.
+   * Safe to call from any thread, requests are coalesced into one frame.
+   */
+  public void requestRender() {
+    if (isRenderThread()) {
+      scheduleFrame();
+    } else {
+      mHandler.post(mScheduleFrameRunnable);
+    }
+  }
+
+  private void scheduleFrame() {
+    if (!mFrameScheduled) {
+      mFrameScheduled = true;
+      Choreographer.getInstance().postFrameCallback(this);
+    }
+  }
+
+  @Override
+  public void doFrame(long frameTimeNanos) {
+    mFrameScheduled = false;
+    mRenderer.onDrawFrame();
+  }
+
+  /**
+   * Finish all queued work, then stop the thread and wait for it to die.
+   * Must not be called on the render thread itself.
+   */
+  public void quitAndWait() {
+    synchronized (mQuitLock) {
+      // Work queued from now on would be dropped by the quit, it is refused instead.
+      mQuitRequested = true;
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          Choreographer.getInstance().removeFrameCallback(SketchpadRenderThread.this);
+          mFrameScheduled = false;
+          getLooper().quit();
+        }
+      });
+    }
+
+    boolean interrupted = false;
+    while (isAlive()) {
+      try {
+        join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
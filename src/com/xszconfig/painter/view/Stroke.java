@@ -0,0 +1,183 @@
+package com.xszconfig.painter.view;
+
+import android.graphics.Path;
+import android.graphics.RectF;
+
+/**
+ * The points of an {@link Action}, kept as primitive arrays instead of an opaque {@link Path}.
+ * <p>
+ * x and y are interleaved in one growable float array, pressure and timestamp are optional
+ * and kept in arrays of their own. The bounding box of all points is kept up to date while
+ * adding, so the stroke can be stored, inspected and hit-tested without a Path, which is only
+ * built from the points when rendering.
+ *
+ * @author xszconfig@gmail.com
+ */
+public class Stroke {
+
+  private static final int INITIAL_CAPACITY = 32;
+
+  /**
+   * Pressure of points added without one.
+   */
+  public static final float DEFAULT_PRESSURE = 1.0f;
+
+  private float[] mPoints;
+  private float[] mPressures;
+  /**
+   * Milliseconds since the first point, so that an int is enough.
+   */
+  private int[] mTimeOffsets;
+  private long mStartTime;
+  private int mPointCount = 0;
+
+  private final RectF mBounds = new RectF();
+
+  /**
+   * @param withPressure whether to keep the pressure of every point
+   * @param withTimestamps whether to keep the time of every point
+   */
+  public Stroke(boolean withPressure, boolean withTimestamps) {
+    this(INITIAL_CAPACITY, withPressure, withTimestamps);
+  }
+
+  public Stroke(int capacity, boolean withPressure, boolean withTimestamps) {
+    capacity = Math.max(capacity, 1);
+    mPoints = new float[2 * capacity];
+    if (withPressure) {
+      mPressures = new float[capacity];
+    }
+    if (withTimestamps) {
+      mTimeOffsets = new int[capacity];
+    }
+  }
+
+  public void add(float x, float y) {
+    add(x, y, DEFAULT_PRESSURE, 0);
+  }
+
+  /**
+   * Add a point, pressure and time are dropped if this stroke does not keep them.
+   */
+  public void add(float x, float y, float pressure, long timeMillis) {
+    ensureCapacity(mPointCount + 1);
+    mPoints[2 * mPointCount] = x;
+    mPoints[2 * mPointCount + 1] = y;
+    if (mPressures != null) {
+      mPressures[mPointCount] = pressure;
+    }
+    if (mTimeOffsets != null) {
+      if (mPointCount == 0) {
+        mStartTime = timeMillis;
+      }
+      mTimeOffsets[mPointCount] = (int) (timeMillis - mStartTime);
+    }
+
+    if (mPointCount == 0) {
+      mBounds.set(x, y, x, y);
+    } else {
+      mBounds.union(x, y);
+    }
+    mPointCount++;
+  }
+
+  private void ensureCapacity(int pointCount) {
+    int capacity = mPoints.length / 2;
+    if (pointCount <= capacity) {
+      return;
+    }
+    int newCapacity = Math.max(pointCount, capacity * 2);
+
+    float[] points = new float[2 * newCapacity];
+    System.arraycopy(mPoints, 0, points, 0, 2 * mPointCount);
+    mPoints = points;
+    if (mPressures != null) {
+      float[] pressures = new float[newCapacity];
+      System.arraycopy(mPressures, 0, pressures, 0, mPointCount);
+      mPressures = pressures;
+    }
+    if (mTimeOffsets != null) {
+      int[] timeOffsets = new int[newCapacity];
+      System.arraycopy(mTimeOffsets, 0, timeOffsets, 0, mPointCount);
+      mTimeOffsets = timeOffsets;
+    }
+  }
+
+  public int getPointCount() {
+    return mPointCount;
+  }
+
+  public float getX(int index) {
+    return mPoints[2 * index];
+  }
+
+  public float getY(int index) {
+    return mPoints[2 * index + 1];
+  }
+
+  public boolean hasPressure() {
+    return mPressures != null;
+  }
+
+  public float getPressure(int index) {
+    return mPressures != null ? mPressures[index] : DEFAULT_PRESSURE;
+  }
+
+  public boolean hasTimestamps() {
+    return mTimeOffsets != null;
+  }
+
+  /**
+   * @return time of the point in milliseconds, 0 if this stroke does not keep time
+   */
+  public long getTimestamp(int index) {
+    return mTimeOffsets != null ? mStartTime + mTimeOffsets[index] : 0;
+  }
+
+  /**
+   * Get the bounds of all points, without any stroke width.
+   * Empty if there is only one point.
+   */
+  public void getBounds(RectF outBounds) {
+    outBounds.set(mBounds);
+  }
+
+  /**
+   * Get the bounds of the points in [fromIndex, toIndex).
+   */
+  public void getBounds(int fromIndex, int toIndex, RectF outBounds) {
+    outBounds.set(getX(fromIndex), getY(fromIndex), getX(fromIndex), getY(fromIndex));
+    for (int i = fromIndex + 1; i < toIndex; i++) {
+      outBounds.union(getX(i), getY(i));
+    }
+  }
+
+  /**
+   * Add the points from the given index on to the path.
+   * <p>
+   * Starting from 0 begins a new contour with a dot at the first point, so that a stroke
+   * of one point is still drawn. Otherwise lines go on from the current point of the path.
+   */
+  public void appendToPath(Path path, int fromIndex) {
+    if (fromIndex >= mPointCount) {
+      return;
+    }
+    if (fromIndex == 0) {
+      path.moveTo(getX(0), getY(0));
+      path.lineTo(getX(0), getY(0));
+      fromIndex = 1;
+    }
+    for (int i = fromIndex; i < mPointCount; i++) {
+      path.lineTo(getX(i), getY(i));
+    }
+  }
+
+  /**
+   * Build a new path of all points.
+   */
+  public Path toPath() {
+    Path path = new Path();
+    appendToPath(path, 0);
+    return path;
+  }
+}
@@ -0,0 +1,124 @@
+package com.xszconfig.painter.view;
+
+/**
+ * Guess where the finger will be in the next frames from the recent touch samples.
+ * <p>
+ * The prediction extrapolates with the velocity and acceleration of the last three samples,
+ * and is only meant to be shown as a provisional tail of the stroke until the real
+ * samples arrive. It never goes into the committed path.
+ *
+ * @author xszconfig@gmail.com
+ */
+class StrokePredictor {
+
+  private static final int SAMPLE_COUNT = 3;
+
+  /**
+   * How far ahead to predict, one point per frame.
+   */
+  private static final int FRAMES_TO_PREDICT = 2;
+  private static final float FRAME_MILLIS = 16.7f;
+
+  /**
+   * Samples closer in time than this are too noisy for velocity.
+   */
+  private static final float MIN_SAMPLE_INTERVAL_MILLIS = 2f;
+
+  /**
+   * Never predict further per frame than this many times the distance of last sample
+   * interval, so that a sudden stop does not overshoot much.
+   */
+  private static final float MAX_PREDICTED_DISTANCE_FACTOR = 2f;
+
+  private final float[] mX = new float[SAMPLE_COUNT];
+  private final float[] mY = new float[SAMPLE_COUNT];
+  private final long[] mTime = new long[SAMPLE_COUNT];
+
+  /**
+   * Number of valid samples, the newest one is at index (mCount - 1) % SAMPLE_COUNT.
+   */
+  private int mCount = 0;
+
+  void reset() {
+    mCount = 0;
+  }
+
+  void addSample(float x, float y, long eventTimeMillis) {
+    if (mCount > 0) {
+      int newest = (mCount - 1) % SAMPLE_COUNT;
+      if (eventTimeMillis - mTime[newest] < MIN_SAMPLE_INTERVAL_MILLIS) {
+        // Replace the newest one instead of adding a sample too close in time.
+        mX[newest] = x;
+        mY[newest] = y;
+        return;
+      }
+    }
+    int index = mCount % SAMPLE_COUNT;
+    mX[index] = x;
+    mY[index] = y;
+    mTime[index] = eventTimeMillis;
+    mCount++;
+  }
+
+  float getLastX() {
+    return mX[(mCount - 1) % SAMPLE_COUNT];
+  }
+
+  float getLastY() {
+    return mY[(mCount - 1) % SAMPLE_COUNT];
+  }
+
+  /**
+   * Predict the points of the next frames.
+   *
+   * @param outPoints x and y of the predicted points, room for 2 * {@link #getMaxPredictedPoints()}
+   * @return number of points predicted
+   */
+  int predict(float[] outPoints) {
+    if (mCount < 2) {
+      return 0;
+    }
+    int i2 = (mCount - 1) % SAMPLE_COUNT;
+    int i1 = (mCount - 2) % SAMPLE_COUNT;
+    float dt2 = mTime[i2] - mTime[i1];
+    if (dt2 <= 0) {
+      return 0;
+    }
+    float vx = (mX[i2] - mX[i1]) / dt2;
+    float vy = (mY[i2] - mY[i1]) / dt2;
+
+    float ax = 0;
+    float ay = 0;
+    if (mCount >= SAMPLE_COUNT) {
+      int i0 = (mCount - 3) % SAMPLE_COUNT;
+      float dt1 = mTime[i1] - mTime[i0];
+      if (dt1 > 0) {
+        float vx1 = (mX[i1] - mX[i0]) / dt1;
+        float vy1 = (mY[i1] - mY[i0]) / dt1;
+        float dt = (dt1 + dt2) / 2;
+        ax = (vx - vx1) / dt;
+        ay = (vy - vy1) / dt;
+      }
+    }
+
+    float lastDistance = (float) Math.hypot(mX[i2] - mX[i1], mY[i2] - mY[i1]);
+    for (int frame = 1; frame <= FRAMES_TO_PREDICT; frame++) {
+      float maxDistance = lastDistance * MAX_PREDICTED_DISTANCE_FACTOR * frame;
+      float t = frame * FRAME_MILLIS;
+      float dx = vx * t + 0.5f * ax * t * t;
+      float dy = vy * t + 0.5f * ay * t * t;
+      float distance = (float) Math.hypot(dx, dy);
+      if (distance > maxDistance && distance > 0) {
+        dx *= maxDistance / distance;
+        dy *= maxDistance / distance;
+      }
+      outPoints[2 * (frame - 1)] = mX[i2] + dx;
+      outPoints[2 * (frame - 1) + 1] = mY[i2] + dy;
+    }
+    return FRAMES_TO_PREDICT;
+  }
+
+  static int getMaxPredictedPoints() {
+    return FRAMES_TO_PREDICT;
+  }
+}
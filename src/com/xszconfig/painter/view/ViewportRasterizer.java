@@ -0,0 +1,118 @@
+package com.xszconfig.painter.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.os.Process;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Draws the actions in a zoomed-in viewport again at the zoomed scale on a background
+ * thread, so that they look sharp instead of magnified from the screenshot, while no
+ * bitmap larger than the surface is kept.
+ * <p>
+ * Only the latest request is rendered. An older one still running stops between two
+ * actions and is never delivered.
+ *
+ * @author xszconfig@gmail.com
+ */
+class ViewportRasterizer {
+
+  interface Callback {
+    /**
+     * Called on the background thread with a bitmap of the size of the viewport.
+     */
+    void onRasterized(Bitmap viewport);
+  }
+
+  private static final ExecutorService RASTERIZE_EXECUTOR = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          return new Thread(new Runnable() {
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              r.run();
+            }
+          }, "ViewportRasterizer");
+        }
+      });
+
+  private final AtomicInteger mLatestRequest = new AtomicInteger();
+
+  /**
+   * Draw the actions over the underlay, mapped to the viewport by a translation and a scale.
+   * The actions must not change any more, and the underlay is recycled when done.
+   *
+   * @param underlay the painting before the actions, may be null for a blank one
+   * @param underlayLeft left of the underlay in screenshot coordinates
+   * @param underlayTop top of the underlay in screenshot coordinates
+   * @param backgroundColor color under the underlay
+   * @param actions actions to draw, in screenshot coordinates
+   * @param width width of the viewport
+   * @param height height of the viewport
+   * @param left where the left of the screenshot goes on the viewport
+   * @param top where the top of the screenshot goes on the viewport
+   * @param scale scale of the viewport
+   */
+  void rasterize(final Bitmap underlay, final float underlayLeft, final float underlayTop,
+                 final int backgroundColor, final List<Action> actions,
+                 final int width, final int height,
+                 final float left, final float top, final float scale,
+                 final Callback callback) {
+    final int request = mLatestRequest.incrementAndGet();
+    RASTERIZE_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        Bitmap viewport = null;
+        try {
+          if (request != mLatestRequest.get()) {
+            return;
+          }
+          viewport = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+          Canvas canvas = new Canvas(viewport);
+          canvas.drawColor(backgroundColor);
+          canvas.translate(left, top);
+          canvas.scale(scale, scale);
+          if (underlay != null) {
+            canvas.drawBitmap(underlay, underlayLeft, underlayTop,
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+          }
+          // Paths are built here rather than by the actions, which are not thread safe.
+          Path path = new Path();
+          for (Action action : actions) {
+            if (request != mLatestRequest.get()) {
+              return;
+            }
+            path.rewind();
+            action.getStroke().appendToPath(path, 0);
+            canvas.drawPath(path, action.getStrokePaint());
+          }
+          callback.onRasterized(viewport);
+          viewport = null;
+        } finally {
+          if (viewport != null) {
+            viewport.recycle();
+          }
+          if (underlay != null) {
+            underlay.recycle();
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Drop the requests made so far.
+   */
+  void cancel() {
+    mLatestRequest.incrementAndGet();
+  }
+}
@@ -0,0 +1,146 @@
+package com.xszconfig.painter;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Encodes bitmaps with {@link ParallelPngEncoder} and decodes them with {@link BitmapFactory},
+ * with stripes smaller and larger than the dictionary, so that the Adler-32 combine, the
+ * concatenation of sync-flushed stripes and the dictionary priming are all checked.
+ *
+ * @author xszconfig@gmail.com
+ */
+public class ParallelPngEncoderTest extends TestCase {
+
+  /**
+   * Stripe heights to try, MAX_VALUE for the whole image in one stripe.
+   */
+  private static final int[] ROWS_PER_STRIPE = {1, 3, 17, 64, Integer.MAX_VALUE};
+
+  public void testOnePixel() throws IOException {
+    checkAllStripes(1, 1);
+  }
+
+  public void testOddSizes() throws IOException {
+    checkAllStripes(7, 5);
+    checkAllStripes(1, 33);
+    checkAllStripes(33, 1);
+  }
+
+  public void testRowsLongerThanDictionary() throws IOException {
+    // A row of 9000 pixels takes 36K, more than the 32K dictionary.
+    checkAllStripes(9000, 6);
+  }
+
+  public void testScreenSize() throws IOException {
+    checkAllStripes(480, 320);
+  }
+
+  public void testStripesPickedForCores() throws IOException {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+      return;
+    }
+    Bitmap bitmap = createTestBitmap(720, 1280, 42);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ParallelPngEncoder.encode(bitmap, out, null);
+    assertDecodesTo(bitmap, out.toByteArray(), "picked for cores");
+    bitmap.recycle();
+  }
+
+  public void testProgressReachesEnd() throws IOException {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+      return;
+    }
+    Bitmap bitmap = createTestBitmap(20, 10, 7);
+    final int[] last = {0, 0};
+    ParallelPngEncoder.encode(bitmap, new ByteArrayOutputStream(),
+        new ParallelPngEncoder.ProgressListener() {
+          @Override
+          public void onProgress(int stripesDone, int stripeCount) {
+            assertEquals(last[0] + 1, stripesDone);
+            last[0] = stripesDone;
+            last[1] = stripeCount;
+          }
+        }, 3);
+    assertEquals(4, last[1]);
+    assertEquals(4, last[0]);
+    bitmap.recycle();
+  }
+
+  private void checkAllStripes(int width, int height) throws IOException {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+      // Sync flush of Deflater is not there to test.
+      return;
+    }
+    Bitmap bitmap = createTestBitmap(width, height, width * 31 + height);
+    for (int rowsPerStripe : ROWS_PER_STRIPE) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ParallelPngEncoder.encode(bitmap, out, null, rowsPerStripe);
+      assertDecodesTo(bitmap, out.toByteArray(),
+          width + "x" + height + ", " + rowsPerStripe + " rows per stripe");
+    }
+    bitmap.recycle();
+  }
+
+  /**
+   * Noise, flat areas and rows repeated a few rows apart, so that the deflater finds
+   * matches in the rows of the stripe before. Pixels are either opaque or fully
+   * transparent, which the premultiplied bitmaps keep exactly.
+   */
+  private static Bitmap createTestBitmap(int width, int height, long seed) {
+    Random random = new Random(seed);
+    int[] pattern = new int[width];
+    for (int x = 0; x < width; x++) {
+      pattern[x] = 0xff000000 | random.nextInt();
+    }
+    int[] colors = new int[width * height];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int color;
+        switch (y % 4) {
+          case 0:
+            color = 0xff000000 | random.nextInt();
+            break;
+          case 1:
+            color = x < width / 2 ? 0xffffffff : 0;
+            break;
+          default:
+            color = pattern[x];
+            break;
+        }
+        colors[y * width + x] = color;
+      }
+    }
+    return Bitmap.createBitmap(colors, width, height, Bitmap.Config.ARGB_8888);
+  }
+
+  private static void assertDecodesTo(Bitmap expected, byte[] png, String message) {
+    Bitmap decoded = BitmapFactory.decodeByteArray(png, 0, png.length);
+    assertNotNull(message, decoded);
+    int width = expected.getWidth();
+    int height = expected.getHeight();
+    assertEquals(message, width, decoded.getWidth());
+    assertEquals(message, height, decoded.getHeight());
+    int[] expectedRow = new int[width];
+    int[] decodedRow = new int[width];
+    for (int y = 0; y < height; y++) {
+      expected.getPixels(expectedRow, 0, width, 0, y, width, 1);
+      decoded.getPixels(decodedRow, 0, width, 0, y, width, 1);
+      for (int x = 0; x < width; x++) {
+        if (expectedRow[x] != decodedRow[x]) {
+          fail(message + ": pixel (" + x + ", " + y + ") is "
+              + Integer.toHexString(decodedRow[x]) + " instead of "
+              + Integer.toHexString(expectedRow[x]));
+        }
+      }
+    }
+    decoded.recycle();
+  }
+}
@@ -0,0 +1,110 @@
+package com.xszconfig.painter.view;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author xszconfig@gmail.com
+ */
+public class ActionCodecTest extends TestCase {
+
+  private static final int[] INTS = {
+      0, 1, -1, 2, -2, 63, -64, 64, -65, 127, 128, 8191, -8192, 16384,
+      1 << 20, -(1 << 20), 1 << 28, Integer.MAX_VALUE, Integer.MIN_VALUE,
+      Integer.MAX_VALUE - 1, Integer.MIN_VALUE + 1
+  };
+
+  public void testZigzagRoundTrip() {
+    for (int n : INTS) {
+      assertEquals(n, ActionCodec.unzigzag(ActionCodec.zigzag(n)));
+    }
+  }
+
+  public void testZigzagKeepsSmallValuesSmall() {
+    assertEquals(0, ActionCodec.zigzag(0));
+    assertEquals(1, ActionCodec.zigzag(-1));
+    assertEquals(2, ActionCodec.zigzag(1));
+    assertEquals(3, ActionCodec.zigzag(-2));
+    assertEquals(-1, ActionCodec.zigzag(Integer.MIN_VALUE));
+  }
+
+  public void testVarintRoundTrip() throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(INTS.length * 5);
+    for (int n : INTS) {
+      ActionCodec.writeVarint(buffer, n);
+    }
+    buffer.flip();
+    for (int n : INTS) {
+      assertEquals(n, ActionCodec.readVarint(buffer));
+    }
+    assertEquals(0, buffer.remaining());
+  }
+
+  public void testVarintSize() {
+    assertEquals(1, varintSize(0));
+    assertEquals(1, varintSize(127));
+    assertEquals(2, varintSize(128));
+    assertEquals(2, varintSize(16383));
+    assertEquals(3, varintSize(16384));
+    // Negative values are not zigzagged here, they take all 5 bytes.
+    assertEquals(5, varintSize(-1));
+  }
+
+  public void testMalformedVarint() {
+    ByteBuffer buffer = ByteBuffer.wrap(new byte[]{
+        (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0});
+    try {
+      ActionCodec.readVarint(buffer);
+      fail("Read a varint of more than 5 bytes");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testActionsRoundTrip() throws IOException {
+    List<Action> actions = new ArrayList<Action>();
+    for (int i = 0; i < 20; i++) {
+      actions.add(i % 5 == 4 ? TestActions.crop(i) : TestActions.stroke(i));
+    }
+    int maxSize = 0;
+    for (Action action : actions) {
+      maxSize += ActionCodec.maxEncodedSize(action);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(maxSize);
+    for (Action action : actions) {
+      ActionCodec.encode(action, buffer);
+    }
+    buffer.flip();
+
+    List<Action> decoded = new ArrayList<Action>();
+    for (int i = 0; i < actions.size(); i++) {
+      decoded.add(ActionCodec.decode(buffer));
+    }
+    assertEquals(0, buffer.remaining());
+    TestActions.assertSameActions(actions, decoded);
+  }
+
+  public void testTruncatedAction() {
+    Action action = TestActions.stroke(1);
+    ByteBuffer buffer = ByteBuffer.allocate(ActionCodec.maxEncodedSize(action));
+    ActionCodec.encode(action, buffer);
+    buffer.flip();
+    buffer.limit(buffer.limit() - 1);
+    try {
+      ActionCodec.decode(buffer);
+      fail("Decoded a truncated action");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private static int varintSize(int value) {
+    ByteBuffer buffer = ByteBuffer.allocate(5);
+    ActionCodec.writeVarint(buffer, value);
+    return buffer.position();
+  }
+}
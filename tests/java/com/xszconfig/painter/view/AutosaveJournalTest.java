@@ -0,0 +1,284 @@
+package com.xszconfig.painter.view;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes journals the way the sketchpad does and recovers them with a new journal, as after
+ * a crash.
+ *
+ * @author xszconfig@gmail.com
+ */
+public class AutosaveJournalTest extends AndroidTestCase {
+
+  private static final List<Action> NO_ACTIONS = Collections.emptyList();
+
+  private File mDirectory;
+  private File mJournalFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mDirectory = new File(getContext().getCacheDir(), "autosave-test");
+    mJournalFile = new File(mDirectory, AutosaveJournal.JOURNAL_FILE_NAME);
+    deleteDirectory();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    deleteDirectory();
+    super.tearDown();
+  }
+
+  public void testRecoverActions() throws IOException {
+    Action a1 = TestActions.stroke(1);
+    Action a2 = TestActions.crop(2);
+    Action a3 = TestActions.stroke(3);
+    AutosaveJournal journal = startEmpty();
+    journal.appendAction(a1);
+    journal.appendAction(a2);
+    journal.appendAction(a3);
+    journal.sync();
+
+    assertRecovers(Arrays.asList(a1, a2, a3), NO_ACTIONS);
+  }
+
+  public void testRecoverWithTornRecordAtTail() throws IOException {
+    Action a1 = TestActions.stroke(1);
+    Action a2 = TestActions.stroke(2);
+    Action a3 = TestActions.stroke(3);
+    AutosaveJournal journal = startEmpty();
+    journal.appendAction(a1);
+    journal.appendAction(a2);
+    journal.appendAction(a3);
+    journal.sync();
+    awaitIo();
+
+    // As if the crash came while the last record was being written.
+    RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw");
+    try {
+      file.setLength(file.length() - 3);
+    } finally {
+      file.close();
+    }
+
+    AutosaveJournal recovered = assertRecovers(Arrays.asList(a1, a2), NO_ACTIONS);
+    // New records go right after the last good one, not after the torn one.
+    Action a4 = TestActions.stroke(4);
+    recovered.appendAction(a4);
+    recovered.sync();
+    assertRecovers(Arrays.asList(a1, a2, a4), NO_ACTIONS);
+  }
+
+  public void testRecoverWithBadCrcAtTail() throws IOException {
+    Action a1 = TestActions.stroke(1);
+    Action a2 = TestActions.stroke(2);
+    AutosaveJournal journal = startEmpty();
+    journal.appendAction(a1);
+    journal.appendAction(a2);
+    journal.appendUndo();
+    journal.sync();
+    awaitIo();
+
+    // Flip the type byte of the undo record, the last byte of the file.
+    RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw");
+    try {
+      file.seek(file.length() - 1);
+      int last = file.read();
+      file.seek(file.length() - 1);
+      file.write(last ^ 0xff);
+    } finally {
+      file.close();
+    }
+
+    assertRecovers(Arrays.asList(a1, a2), NO_ACTIONS);
+  }
+
+  public void testCompactionWithBufferedRecords() throws IOException {
+    Action a1 = TestActions.stroke(1);
+    Action a2 = TestActions.stroke(2);
+    Action a3 = TestActions.crop(3);
+    Action a4 = TestActions.stroke(4);
+    AutosaveJournal journal = startEmpty();
+    journal.appendAction(a1);
+    journal.sync();
+    // Still in the buffer when the new journal is started, the snapshot has it.
+    journal.appendAction(a2);
+    journal.appendAction(a3);
+    journal.start(null, Arrays.asList(a1, a2), Collections.singletonList(a3));
+    journal.appendAction(a4);
+    journal.sync();
+
+    assertRecovers(Arrays.asList(a1, a2, a4), NO_ACTIONS);
+  }
+
+  public void testCompactionKeepsRedo() throws IOException {
+    Action a1 = TestActions.stroke(1);
+    Action a2 = TestActions.stroke(2);
+    Action a3 = TestActions.stroke(3);
+    AutosaveJournal journal = startEmpty();
+    journal.appendAction(a1);
+    journal.appendAction(a2);
+    journal.appendAction(a3);
+    journal.appendUndo();
+    journal.appendUndo();
+    // The redo stack is kept with the last one undone at the end.
+    journal.start(null, Collections.singletonList(a1), Arrays.asList(a3, a2));
+    journal.sync();
+
+    AutosaveJournal recovered = assertRecovers(Collections.singletonList(a1),
+        Arrays.asList(a3, a2));
+    recovered.appendRedo();
+    recovered.sync();
+    assertRecovers(Arrays.asList(a1, a2), Collections.singletonList(a3));
+  }
+
+  public void testUndoAndRedo() throws IOException {
+    Action a1 = TestActions.stroke(1);
+    Action a2 = TestActions.stroke(2);
+    Action a3 = TestActions.stroke(3);
+    AutosaveJournal journal = startEmpty();
+    journal.appendAction(a1);
+    journal.appendAction(a2);
+    journal.appendAction(a3);
+    journal.appendUndo();
+    journal.appendUndo();
+    journal.appendRedo();
+    journal.sync();
+
+    assertRecovers(Arrays.asList(a1, a2), Collections.singletonList(a3));
+  }
+
+  public void testActionAfterUndoDropsRedo() throws IOException {
+    Action a1 = TestActions.stroke(1);
+    Action a2 = TestActions.stroke(2);
+    Action a3 = TestActions.stroke(3);
+    AutosaveJournal journal = startEmpty();
+    journal.appendAction(a1);
+    journal.appendAction(a2);
+    journal.appendUndo();
+    journal.appendAction(a3);
+    journal.sync();
+
+    assertRecovers(Arrays.asList(a1, a3), NO_ACTIONS);
+  }
+
+  public void testClear() throws IOException {
+    Action a1 = TestActions.stroke(1);
+    Action a2 = TestActions.stroke(2);
+    Action a3 = TestActions.stroke(3);
+    Bitmap baseImage = Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888);
+    AutosaveJournal journal = new AutosaveJournal(mDirectory);
+    journal.start(baseImage, Collections.singletonList(a1), NO_ACTIONS);
+    journal.appendAction(a2);
+    journal.appendUndo();
+    journal.appendClear();
+    journal.appendAction(a3);
+    journal.sync();
+
+    List<Action> shownActions = new ArrayList<Action>();
+    List<Action> removedActions = new ArrayList<Action>();
+    Bitmap recoveredBase = new AutosaveJournal(mDirectory).recover(shownActions, removedActions);
+    // The base image went with the clear.
+    assertNull(recoveredBase);
+    TestActions.assertSameActions(Collections.singletonList(a3), shownActions);
+    TestActions.assertSameActions(NO_ACTIONS, removedActions);
+    baseImage.recycle();
+  }
+
+  public void testRecoverBaseImage() throws IOException {
+    Bitmap baseImage = Bitmap.createBitmap(8, 6, Bitmap.Config.ARGB_8888);
+    baseImage.eraseColor(0xff204080);
+    Action a1 = TestActions.stroke(1);
+    AutosaveJournal journal = new AutosaveJournal(mDirectory);
+    journal.start(baseImage, NO_ACTIONS, NO_ACTIONS);
+    journal.appendAction(a1);
+    journal.sync();
+
+    List<Action> shownActions = new ArrayList<Action>();
+    Bitmap recoveredBase = new AutosaveJournal(mDirectory)
+        .recover(shownActions, new ArrayList<Action>());
+    assertNotNull(recoveredBase);
+    assertEquals(8, recoveredBase.getWidth());
+    assertEquals(6, recoveredBase.getHeight());
+    assertEquals(0xff204080, recoveredBase.getPixel(3, 3));
+    TestActions.assertSameActions(Collections.singletonList(a1), shownActions);
+    baseImage.recycle();
+    recoveredBase.recycle();
+  }
+
+  public void testDelete() {
+    AutosaveJournal journal = startEmpty();
+    journal.appendAction(TestActions.stroke(1));
+    journal.sync();
+    journal.delete();
+
+    assertFalse(new AutosaveJournal(mDirectory).exists());
+  }
+
+  public void testDeleteAfterReopenedByAnother() throws IOException {
+    Action a1 = TestActions.stroke(1);
+    AutosaveJournal journal = startEmpty();
+    journal.appendAction(a1);
+    journal.sync();
+
+    // A new sketchpad takes the journal over before the old one deletes it.
+    AutosaveJournal recovered = assertRecovers(Collections.singletonList(a1), NO_ACTIONS);
+    journal.delete();
+    Action a2 = TestActions.stroke(2);
+    recovered.appendAction(a2);
+    recovered.sync();
+
+    assertRecovers(Arrays.asList(a1, a2), NO_ACTIONS);
+  }
+
+  private AutosaveJournal startEmpty() {
+    AutosaveJournal journal = new AutosaveJournal(mDirectory);
+    journal.start(null, NO_ACTIONS, NO_ACTIONS);
+    return journal;
+  }
+
+  /**
+   * Recover the journal with a new one, as after a crash, and check the history.
+   *
+   * @return the journal recovered, appending from there
+   */
+  private AutosaveJournal assertRecovers(List<Action> expectedShown,
+                                         List<Action> expectedRemoved) throws IOException {
+    AutosaveJournal journal = new AutosaveJournal(mDirectory);
+    assertTrue(journal.exists());
+    List<Action> shownActions = new ArrayList<Action>();
+    List<Action> removedActions = new ArrayList<Action>();
+    assertNull(journal.recover(shownActions, removedActions));
+    TestActions.assertSameActions(expectedShown, shownActions);
+    TestActions.assertSameActions(expectedRemoved, removedActions);
+    assertTrue(journal.isOpen());
+    return journal;
+  }
+
+  /**
+   * Wait for the I/O queued so far by all journals.
+   */
+  private void awaitIo() {
+    new AutosaveJournal(mDirectory).exists();
+  }
+
+  private void deleteDirectory() {
+    awaitIo();
+    File[] files = mDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    mDirectory.delete();
+  }
+}
@@ -0,0 +1,206 @@
+package com.xszconfig.painter.view;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reads documents of the current version and of version 1, which kept the base image as
+ * raw pixels instead of a PNG.
+ *
+ * @author xszconfig@gmail.com
+ */
+public class SketchDocumentTest extends AndroidTestCase {
+
+  private File mFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mFile = new File(getContext().getCacheDir(), "test" + SketchDocument.FILE_EXTENSION);
+    mFile.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mFile.delete();
+    super.tearDown();
+  }
+
+  public void testWithoutBaseImage() throws IOException {
+    List<Action> actions = createActions(12);
+    SketchDocument.write(mFile, null, actions);
+
+    SketchDocument document = SketchDocument.read(mFile);
+    assertNull(document.getBaseImage());
+    TestActions.assertSameActions(actions, document.getActions());
+  }
+
+  public void testEmpty() throws IOException {
+    SketchDocument.write(mFile, null, Collections.<Action>emptyList());
+
+    SketchDocument document = SketchDocument.read(mFile);
+    assertNull(document.getBaseImage());
+    assertEquals(0, document.getActions().size());
+  }
+
+  public void testWithBaseImage() throws IOException {
+    Bitmap baseImage = createBaseImage(61, 47);
+    List<Action> actions = createActions(5);
+    SketchDocument.write(mFile, baseImage, actions);
+
+    SketchDocument document = SketchDocument.read(mFile);
+    assertSamePixels(baseImage, document.getBaseImage());
+    TestActions.assertSameActions(actions, document.getActions());
+    baseImage.recycle();
+    document.getBaseImage().recycle();
+  }
+
+  public void testVersion1() throws IOException {
+    Bitmap baseImage = createBaseImage(33, 20);
+    List<Action> actions = createActions(7);
+    writeVersion1(mFile, baseImage, actions);
+
+    SketchDocument document = SketchDocument.read(mFile);
+    assertSamePixels(baseImage, document.getBaseImage());
+    TestActions.assertSameActions(actions, document.getActions());
+    baseImage.recycle();
+    document.getBaseImage().recycle();
+  }
+
+  public void testVersion1WithoutBaseImage() throws IOException {
+    List<Action> actions = createActions(3);
+    writeVersion1(mFile, null, actions);
+
+    SketchDocument document = SketchDocument.read(mFile);
+    assertNull(document.getBaseImage());
+    TestActions.assertSameActions(actions, document.getActions());
+  }
+
+  public void testVersion1WithTruncatedPixels() throws IOException {
+    Bitmap baseImage = createBaseImage(10, 10);
+    writeVersion1(mFile, baseImage, createActions(2));
+    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    try {
+      file.setLength(file.length() - 4);
+    } finally {
+      file.close();
+    }
+    try {
+      SketchDocument.read(mFile);
+      fail("Read a document with pixels missing");
+    } catch (IOException e) {
+      // expected
+    }
+    baseImage.recycle();
+  }
+
+  public void testUnknownVersion() throws IOException {
+    SketchDocument.write(mFile, null, createActions(1));
+    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    try {
+      file.seek(4);
+      file.writeInt(99);
+    } finally {
+      file.close();
+    }
+    try {
+      SketchDocument.read(mFile);
+      fail("Read a document of an unknown version");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Write a document as version 1 did: the header, the actions and the raw pixels.
+   */
+  private static void writeVersion1(File file, Bitmap baseImage, List<Action> actions)
+      throws IOException {
+    int maxSize = 0;
+    for (Action action : actions) {
+      maxSize += ActionCodec.maxEncodedSize(action);
+    }
+    ByteBuffer encodedActions = ByteBuffer.allocate(maxSize);
+    for (Action action : actions) {
+      ActionCodec.encode(action, encodedActions);
+    }
+    encodedActions.flip();
+
+    ByteBuffer header = ByteBuffer.allocate(7 * 4);
+    header.putInt(0x504E5452); // "PNTR"
+    header.putInt(1);
+    header.putInt(baseImage != null ? baseImage.getWidth() : 0);
+    header.putInt(baseImage != null ? baseImage.getHeight() : 0);
+    header.putInt(baseImage != null ? 1 : 0);
+    header.putInt(actions.size());
+    header.putInt(encodedActions.remaining());
+    header.flip();
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      while (encodedActions.hasRemaining()) {
+        channel.write(encodedActions);
+      }
+      if (baseImage != null) {
+        ByteBuffer pixels = ByteBuffer.allocate(baseImage.getByteCount());
+        baseImage.copyPixelsToBuffer(pixels);
+        pixels.flip();
+        while (pixels.hasRemaining()) {
+          channel.write(pixels);
+        }
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static List<Action> createActions(int count) {
+    List<Action> actions = new ArrayList<Action>();
+    for (int i = 0; i < count; i++) {
+      actions.add(i % 3 == 2 ? TestActions.crop(i) : TestActions.stroke(i));
+    }
+    return actions;
+  }
+
+  /**
+   * Opaque, so that premultiplied pixels come back exactly, with flat areas and noise.
+   */
+  private static Bitmap createBaseImage(int width, int height) {
+    Random random = new Random(width * 31 + height);
+    int[] colors = new int[width * height];
+    for (int i = 0; i < colors.length; i++) {
+      colors[i] = (i / width) % 2 == 0 ? 0xff000000 | random.nextInt() : 0xff336699;
+    }
+    return Bitmap.createBitmap(colors, width, height, Bitmap.Config.ARGB_8888);
+  }
+
+  private static void assertSamePixels(Bitmap expected, Bitmap actual) {
+    assertNotNull(actual);
+    int width = expected.getWidth();
+    int height = expected.getHeight();
+    assertEquals(width, actual.getWidth());
+    assertEquals(height, actual.getHeight());
+    int[] expectedPixels = new int[width * height];
+    int[] actualPixels = new int[width * height];
+    expected.getPixels(expectedPixels, 0, width, 0, 0, width, height);
+    actual.getPixels(actualPixels, 0, width, 0, 0, width, height);
+    for (int i = 0; i < expectedPixels.length; i++) {
+      assertEquals("pixel " + i, expectedPixels[i], actualPixels[i]);
+    }
+  }
+}
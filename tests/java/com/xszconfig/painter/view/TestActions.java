@@ -0,0 +1,91 @@
+package com.xszconfig.painter.view;
+
+import junit.framework.Assert;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Actions made up for tests, and checks that actions came back the same after encoding.
+ *
+ * @author xszconfig@gmail.com
+ */
+final class TestActions {
+
+  private TestActions() {
+  }
+
+  /**
+   * A stroke with pressure and timestamps. Points are on the 1/16 pixel grid
+   * {@link ActionCodec} keeps, so they come back exactly.
+   */
+  static Action stroke(long seed) {
+    Random random = new Random(seed);
+    Stroke stroke = new Stroke(true, true);
+    float x = random.nextInt(1000) / 16f;
+    float y = random.nextInt(1000) / 16f;
+    long time = 1400000000000L + random.nextInt(100000);
+    int pointCount = 1 + random.nextInt(50);
+    for (int i = 0; i < pointCount; i++) {
+      stroke.add(x, y, random.nextInt(256) / 255f, time);
+      // Negative deltas too, for the zigzag encoding.
+      x += (random.nextInt(4000) - 2000) / 16f;
+      y += (random.nextInt(4000) - 2000) / 16f;
+      time += random.nextInt(40);
+    }
+    Brush.BrushType[] brushTypes = Brush.BrushType.values();
+    Brush brush = new Brush(brushTypes[random.nextInt(brushTypes.length)],
+        1 + random.nextInt(50));
+    return new Action(random.nextInt(), brush, stroke);
+  }
+
+  static CropAction crop(long seed) {
+    Random random = new Random(seed);
+    CropAction cropAction = new CropAction(random.nextInt(1000) / 16f,
+        random.nextInt(1000) / 16f);
+    int pointCount = 2 + random.nextInt(20);
+    for (int i = 0; i < pointCount; i++) {
+      cropAction.move(random.nextInt(8000) / 16f, random.nextInt(8000) / 16f);
+    }
+    cropAction.closeCropPath();
+    cropAction.setMoveDatlaX(random.nextInt(200) - 100.5f);
+    cropAction.setMoveDatlaY(random.nextInt(200) - 100.25f);
+    return cropAction;
+  }
+
+  static void assertSameActions(List<Action> expected, List<Action> actual) {
+    Assert.assertEquals("action count", expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertSameAction("action " + i, expected.get(i), actual.get(i));
+    }
+  }
+
+  static void assertSameAction(String message, Action expected, Action actual) {
+    Assert.assertEquals(message, expected.getClass(), actual.getClass());
+    if (expected instanceof CropAction) {
+      CropAction expectedCrop = (CropAction) expected;
+      CropAction actualCrop = (CropAction) actual;
+      Assert.assertEquals(message, expectedCrop.getMoveDatlaX(), actualCrop.getMoveDatlaX(), 0f);
+      Assert.assertEquals(message, expectedCrop.getMoveDatlaY(), actualCrop.getMoveDatlaY(), 0f);
+    } else {
+      Assert.assertEquals(message, expected.getColor(), actual.getColor());
+      Assert.assertEquals(message, expected.getBrush().getBrushType(),
+          actual.getBrush().getBrushType());
+      Assert.assertEquals(message, expected.getBrush().getSize(), actual.getBrush().getSize(), 0f);
+    }
+
+    Stroke expectedStroke = expected.getStroke();
+    Stroke actualStroke = actual.getStroke();
+    Assert.assertEquals(message, expectedStroke.getPointCount(), actualStroke.getPointCount());
+    Assert.assertEquals(message, expectedStroke.hasPressure(), actualStroke.hasPressure());
+    Assert.assertEquals(message, expectedStroke.hasTimestamps(), actualStroke.hasTimestamps());
+    for (int i = 0; i < expectedStroke.getPointCount(); i++) {
+      String point = message + ", point " + i;
+      Assert.assertEquals(point, expectedStroke.getX(i), actualStroke.getX(i), 0f);
+      Assert.assertEquals(point, expectedStroke.getY(i), actualStroke.getY(i), 0f);
+      Assert.assertEquals(point, expectedStroke.getPressure(i), actualStroke.getPressure(i),
+          0.5f / 255);
+      Assert.assertEquals(point, expectedStroke.getTimestamp(i), actualStroke.getTimestamp(i));
+    }
+  }
+}